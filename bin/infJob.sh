@@ -0,0 +1,16 @@
+#!/bin/bash
+# send an inference job (inf.sh options, e.g. -dfile labeledDocs/20140101) to the server of
+# infServer.sh; runs inf.sh instead when no server is listening
+port=${LDA_PORT:-9527}
+baseDir=`dirname $0`/..
+# only the connection attempt is silenced, a failing inf.sh still reports its errors
+if { exec 3<>/dev/tcp/127.0.0.1/$port; } 2>/dev/null; then
+  echo "$*" >&3
+  read reply <&3
+  exec 3>&-
+  echo "$reply"
+  [ "${reply%% *}" = "ok" ]
+else
+  echo "no inference server on port $port, running inf.sh $*"
+  sh $baseDir/bin/inf.sh $*
+fi
@@ -0,0 +1,8 @@
+# keep the model loaded and serve inference jobs, see infJob.sh
+args=$*
+baseDir=`dirname $0`/..
+JAR=$baseDir/target/jgibblda-jar-with-dependencies.jar
+MAIN=com.elex.bigdata.jgibblda.LDA
+logFile=/data/log/user_category/processLog/llda/infServer.log
+echo "java -cp $JAR $MAIN -server -reload 600 -dir /data/log/user_category/llda -ntopics 5 -model elex $args >> $logFile 2>&1"
+nohup java -cp $JAR $MAIN -server -reload 600 -dir /data/log/user_category/llda -ntopics 5 -model elex $args >> $logFile 2>&1 &
@@ -0,0 +1,268 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Metropolis-Hastings sampler with alias tables (LightLDA, Yuan et al. 2015). Each token runs
+ * a few MH steps alternating between
+ * <ul>
+ * <li>a word proposal q_w(k) ~ (nw[w][k] + beta)/(nwsum[k] + Vbeta), drawn in O(1) from a per-word
+ * alias table over the non-zero topics of the word plus a shared alias table for the beta part.
+ * The tables are built from the counts at the time and refreshed lazily every -aliasrefresh
+ * sweeps; the MH correction accounts for them being stale, looking the stale counts up in a
+ * hash index of the table.</li>
+ * <li>a doc proposal q_d(k) ~ nd[m][k] + alpha, drawn in O(1) by picking the topic of another
+ * token of the document (weighted by cf) or a uniform topic.</li>
+ * </ul>
+ * Per-token cost is therefore independent of K. Labelled documents only have a few possible
+ * topics and are sampled exactly over their labels by LabelKernel.
+ */
+public class AliasSampler extends Sampler {
+  private int K;
+  private double alpha;
+  private double beta;
+  private double Vbeta;
+  private int mhSteps;
+  private int refresh;
+
+  private int sweeps = 0;
+  private int generation = 0;    // bumped whenever the tables go stale
+  private double[] staleInvDen;  // 1 / (nwsum[k] + Vbeta) when the tables were built
+  private AliasTable smoothing = new AliasTable(); // beta / (nwsum[k] + Vbeta) over all topics
+  private double smoothingMass;
+  private WordProposal[] words;
+
+  // cumulated cfs of the current document for the doc proposal
+  private int currentDoc = -1;
+  private int[] cumCfs = new int[16];
+
+  private LabelKernel labelKernel;
+
+  // temp variables for sampling
+  private double[] p;
+
+  /**
+   * word proposal table of one word, valid for the generation it was built in
+   */
+  private static class WordProposal {
+    int generation;
+    int[] topics;   // topics with nw[w][k] > 0 at build time
+    int[] counts;   // nw[w][topics[i]] at build time
+    int[] index;    // open-addressing table of i + 1 by topics[i], 0 for an empty slot, at most half full
+    double mass;    // sum of counts[i] * staleInvDen[topics[i]]
+    AliasTable alias = new AliasTable();
+  }
+
+  public AliasSampler(Model model, CountMatrix nw, int[] nwsum, FastRandom random, int mhSteps, int refresh) {
+    super(model, nw, nwsum, random);
+    K = model.getK();
+    alpha = model.getAlpha();
+    beta = model.getBeta();
+    Vbeta = model.getV() * beta;
+    this.mhSteps = Math.max(1, mhSteps);
+    this.refresh = Math.max(1, refresh);
+
+    staleInvDen = new double[K];
+    words = new WordProposal[nw.getRows()];
+    p = new double[K];
+    labelKernel = new LabelKernel(model.getLabelGroups(), K, alpha, beta);
+  }
+
+  public void prepare() {
+    if (sweeps++ % refresh == 0) {
+      generation++;
+      for (int k = 0; k < K; k++) {
+        staleInvDen[k] = 1.0 / (nwsum[k] + Vbeta);
+        p[k] = beta * staleInvDen[k];
+      }
+      smoothing.build(p, K);
+      smoothingMass = 0;
+      for (int k = 0; k < K; k++) {
+        smoothingMass += p[k];
+      }
+    }
+    for (int k = 0; k < K; k++) {
+      labelKernel.setDenominator(k, nwsum[k] + Vbeta);
+    }
+    currentDoc = -1;
+  }
+
+  public int sample(int m, int n) {
+    Document doc = model.getData().getDocs().get(m);
+    int topic = model.getZ().get(m, n);
+    int w = doc.getWords()[n];
+    int cf = doc.getCfs()[n];
+    ndRow.open(m);
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+    int[] nwPage = nw.page(w);
+    int nwOff = nw.offset(w);
+
+    // remove z_i from the count variables
+    nwPage[nwOff + topic] -= cf;
+    ndPage[ndOff + topic] -= cf;
+    nwsum[topic] -= cf;
+    model.getNdsum()[m] -= cf;
+    labelKernel.setDenominator(topic, nwsum[topic] + Vbeta);
+
+    int group = model.getLabelGroups().getGroup(m);
+    if (group >= 0) {
+      topic = labelKernel.sample(group, ndPage, ndOff, nwPage, nwOff, random.nextDouble());
+    } else {
+      if (m != currentDoc) {
+        beginDocument(doc, m);
+      }
+      WordProposal proposal = wordProposal(w);
+      double pi = target(ndPage, ndOff, nwPage, nwOff, topic);
+
+      for (int step = 0; step < mhSteps; step++) {
+        // word proposal
+        int t = drawWord(proposal);
+        if (t != topic) {
+          double piT = target(ndPage, ndOff, nwPage, nwOff, t);
+          double accept = piT * wordWeight(proposal, topic) / (pi * wordWeight(proposal, t));
+          if (accept >= 1 || random.nextDouble() < accept) {
+            topic = t;
+            pi = piT;
+          }
+        }
+
+        // doc proposal
+        t = drawDoc(m, n, doc.getLength());
+        if (t != topic) {
+          double piT = target(ndPage, ndOff, nwPage, nwOff, t);
+          double accept = piT * (ndPage[ndOff + topic] + alpha) / (pi * (ndPage[ndOff + t] + alpha));
+          if (accept >= 1 || random.nextDouble() < accept) {
+            topic = t;
+            pi = piT;
+          }
+        }
+      }
+    }
+
+    // add newly estimated z_i to count variables
+    nwPage[nwOff + topic] += cf;
+    ndPage[ndOff + topic] += cf;
+    nwsum[topic] += cf;
+    model.getNdsum()[m] += cf;
+    labelKernel.setDenominator(topic, nwsum[topic] + Vbeta);
+
+    return topic;
+  }
+
+  /**
+   * unnormalized p(z_i = k | z_-i, w) with z_i removed from the counts
+   */
+  private double target(int[] ndPage, int ndOff, int[] nwPage, int nwOff, int k) {
+    return (ndPage[ndOff + k] + alpha) * (nwPage[nwOff + k] + beta) / (nwsum[k] + Vbeta);
+  }
+
+  private WordProposal wordProposal(int w) {
+    WordProposal proposal = words[w];
+    if (proposal == null) {
+      proposal = words[w] = new WordProposal();
+    } else if (proposal.generation == generation) {
+      return proposal;
+    }
+
+    int[] nwPage = nw.page(w);
+    int nwOff = nw.offset(w);
+    int size = 0;
+    for (int k = 0; k < K; k++) {
+      if (nwPage[nwOff + k] != 0)
+        size++;
+    }
+    proposal.topics = new int[size];
+    proposal.counts = new int[size];
+    proposal.index = new int[Integer.highestOneBit(Math.max(1, size)) << 2];
+    int mask = proposal.index.length - 1;
+    proposal.mass = 0;
+    size = 0;
+    for (int k = 0; k < K; k++) {
+      int count = nwPage[nwOff + k];
+      if (count != 0) {
+        proposal.topics[size] = k;
+        proposal.counts[size] = count;
+        int slot = slot(k, mask);
+        while (proposal.index[slot] != 0)
+          slot = (slot + 1) & mask;
+        proposal.index[slot] = size + 1;
+        p[size] = count * staleInvDen[k];
+        proposal.mass += p[size++];
+      }
+    }
+    if (size > 0) {
+      proposal.alias.build(p, size);
+    }
+    proposal.generation = generation;
+    return proposal;
+  }
+
+  private int drawWord(WordProposal proposal) {
+    double u = random.nextDouble() * (proposal.mass + smoothingMass);
+    if (u < proposal.mass) {
+      return proposal.topics[proposal.alias.sample(u / proposal.mass)];
+    }
+    return smoothing.sample((u - proposal.mass) / smoothingMass);
+  }
+
+  /**
+   * unnormalized q_w(k) of the stale table, the count of k looked up in the index of the table
+   */
+  private double wordWeight(WordProposal proposal, int k) {
+    int count = 0;
+    int mask = proposal.index.length - 1;
+    for (int slot = slot(k, mask); proposal.index[slot] != 0; slot = (slot + 1) & mask) {
+      int i = proposal.index[slot] - 1;
+      if (proposal.topics[i] == k) {
+        count = proposal.counts[i];
+        break;
+      }
+    }
+    return (count + beta) * staleInvDen[k];
+  }
+
+  private static int slot(int k, int mask) {
+    int h = k * 0x9e3779b9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private void beginDocument(Document doc, int m) {
+    int N = doc.getLength();
+    if (cumCfs.length < N) {
+      cumCfs = new int[Math.max(N, cumCfs.length * 2)];
+    }
+    int sum = 0;
+    for (int n = 0; n < N; n++) {
+      sum += doc.getCfs()[n];
+      cumCfs[n] = sum;
+    }
+    currentDoc = m;
+  }
+
+  /**
+   * draw from q_d(k) ~ nd[m][k] + alpha, nd without token n: pick one of the other tokens
+   * proportionally to its cf and take its topic, or a uniform topic
+   */
+  private int drawDoc(int m, int n, int N) {
+    int cf = cumCfs[n] - (n > 0 ? cumCfs[n - 1] : 0);
+    int rest = cumCfs[N - 1] - cf;
+    double u = random.nextDouble() * (rest + K * alpha);
+    if (u >= rest) {
+      return Math.min(K - 1, (int) ((u - rest) / alpha));
+    }
+
+    // skip over the cf range of token n
+    int x = (int) u;
+    if (x >= cumCfs[n] - cf)
+      x += cf;
+
+    int lo = 0, hi = N - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (cumCfs[mid] > x)
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return model.getZ().get(m, lo);
+  }
+}
@@ -0,0 +1,71 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Walker's alias table (Vose's construction): O(n) to build, O(1) to draw from a discrete
+ * distribution over 0..n-1 given by unnormalized weights.
+ */
+public class AliasTable {
+  private double[] prob = new double[0];
+  private int[] alias = new int[0];
+  private int size = 0;
+
+  /**
+   * build the table from weights[0..n-1], all weights must be non-negative with a positive sum
+   */
+  public void build(double[] weights, int n) {
+    if (prob.length < n) {
+      prob = new double[n];
+      alias = new int[n];
+    }
+    size = n;
+
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += weights[i];
+    }
+
+    // small and large share one array: small grows from the front, large from the back
+    int[] work = new int[n];
+    int nSmall = 0, nLarge = 0;
+    for (int i = 0; i < n; i++) {
+      prob[i] = weights[i] * n / sum;
+      if (prob[i] < 1.0)
+        work[nSmall++] = i;
+      else
+        work[n - 1 - nLarge++] = i;
+    }
+
+    while (nSmall > 0 && nLarge > 0) {
+      int small = work[--nSmall];
+      int large = work[n - nLarge];
+      alias[small] = large;
+      prob[large] -= 1.0 - prob[small];
+      if (prob[large] < 1.0) {
+        nLarge--;
+        work[nSmall++] = large;
+      }
+    }
+    // left-overs are 1 up to rounding
+    while (nLarge > 0) {
+      prob[work[n - nLarge--]] = 1.0;
+    }
+    while (nSmall > 0) {
+      prob[work[--nSmall]] = 1.0;
+    }
+  }
+
+  /**
+   * draw an index, u is uniform in [0, 1)
+   */
+  public int sample(double u) {
+    double x = u * size;
+    int i = (int) x;
+    if (i >= size)
+      i = size - 1;
+    return x - i < prob[i] ? i : alias[i];
+  }
+
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,439 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary model file (.model.bin), written next to the gzipped text files with -binary and
+ * converted from and to them with -convert, see ModelConverter. It holds what the tassign,
+ * others and wordmap files hold, as a fixed-width header followed by little-endian sections:
+ *
+ *   header   magic, version, K, M, V, liter, convergedIter, dictionary size,
+ *            alpha, beta, number of tokens N, number of labels L (64 bytes)
+ *   int[M]   document lengths
+ *   int[N]   words, int[N] cfs, int[N] topic assignments z
+ *   int[M]   number of labels of every document, int[L] labels
+ *   int[M]   UTF-8 length of every uid, int[V] UTF-8 length of every dictionary word
+ *   byte[]   uids, dictionary words (in id order)
+ *
+ * The file is read through FileChannel.map with bulk int gets, one cursor per section,
+ * so loading a model does no gunzipping and no text parsing at all. The sections are still
+ * copied into the heap Documents, TopicAssignments and Dictionary that sampling works on, so
+ * loading remains linear in the number of tokens and words: it is a bulk copy instead of
+ * parsing, not a zero-copy open. Only the dictionary can stay mapped, see MappedDictionary.
+ */
+public class BinaryModel implements Closeable {
+  public static final int MAGIC = 0x4241444c; // "LDAB"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int WINDOW = 1 << 26; // bytes mapped at a time by a cursor
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+
+  private int K;
+  private int M;
+  private int V;
+  private int liter;
+  private int convergedIter;
+  private int dictSize;
+  private double alpha;
+  private double beta;
+  private long numTokens;
+  private long numLabels;
+
+  private BinaryModel(RandomAccessFile file) {
+    this.file = file;
+    this.channel = file.getChannel();
+  }
+
+  /**
+   * open a binary model file and read its header
+   */
+  public static BinaryModel open(String filename) throws IOException {
+    BinaryModel model = new BinaryModel(new RandomAccessFile(filename, "r"));
+    try {
+      model.readHeader();
+    } catch (IOException e) {
+      model.close();
+      throw e;
+    }
+    return model;
+  }
+
+  private void readHeader() throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      throw new IOException("Not a binary model file: too short");
+    }
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+      .order(ByteOrder.LITTLE_ENDIAN);
+    if (header.getInt() != MAGIC) {
+      throw new IOException("Not a binary model file: bad magic number");
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary model version: " + version);
+    }
+    K = header.getInt();
+    M = header.getInt();
+    V = header.getInt();
+    liter = header.getInt();
+    convergedIter = header.getInt();
+    dictSize = header.getInt();
+    alpha = header.getDouble();
+    beta = header.getDouble();
+    numTokens = header.getLong();
+    numLabels = header.getLong();
+  }
+
+  /**
+   * Load the documents, topic assignments and dictionary into model, like
+   * Model.loadModel does from the text files, copying them out of the mapping. As
+   * there, the iteration counters are not restored, see getLiter() and getConvergedIter().
+   */
+  public void load(Model model) throws IOException {
+    load(model, null);
+  }
+
+  /**
+   * load model, with dict as its dictionary instead of the one in the file if dict is not null
+   */
+  public void load(Model model, Dictionary dict) throws IOException {
+    long docsPos = HEADER_SIZE;
+    long wordsPos = docsPos + 4L * M;
+    long cfsPos = wordsPos + 4L * numTokens;
+    long zPos = cfsPos + 4L * numTokens;
+    long labelCountsPos = zPos + 4L * numTokens;
+    long labelsPos = labelCountsPos + 4L * M;
+    long uidLengthsPos = labelsPos + 4L * numLabels;
+    long wordLengthsPos = uidLengthsPos + 4L * M;
+    long uidsPos = wordLengthsPos + 4L * dictSize;
+
+    int[] docLengths = new Cursor(docsPos).ints(M);
+    int[] labelCounts = new Cursor(labelCountsPos).ints(M);
+    int[] uidLengths = new Cursor(uidLengthsPos).ints(M);
+
+    long uidBytes = 0;
+    for (int m = 0; m < M; m++) {
+      uidBytes += uidLengths[m];
+    }
+
+    Cursor words = new Cursor(wordsPos);
+    Cursor cfs = new Cursor(cfsPos);
+    Cursor topics = new Cursor(zPos);
+    Cursor labels = new Cursor(labelsPos);
+    Cursor uids = new Cursor(uidsPos);
+    Cursor dictWords = new Cursor(uidsPos + uidBytes);
+
+    LDADataset data = new LDADataset();
+    data.setM(M);
+    data.setV(V);
+    TopicAssignments z = new TopicAssignments(K, M, numTokens);
+    int[] docTopics = new int[0];
+    for (int m = 0; m < M; m++) {
+      int length = docLengths[m];
+      int[] docWords = words.ints(length);
+      int[] docCfs = cfs.ints(length);
+      if (docTopics.length < length) {
+        docTopics = new int[length];
+      }
+      topics.ints(docTopics, 0, length);
+      z.addDocument();
+      for (int n = 0; n < length; n++) {
+        z.add(docTopics[n]);
+      }
+
+      int[] docLabels = labels.ints(labelCounts[m]);
+      data.setDoc(new Document(docWords, docCfs, model.isUnlabeled() ? null : docLabels), m);
+      data.setUidDocNum(uids.string(uidLengths[m]), m);
+    }
+
+    if (dict == null) {
+      int[] wordLengths = new Cursor(wordLengthsPos).ints(dictSize);
+      dict = new Dictionary();
+      byte[] word = new byte[0];
+      for (int i = 0; i < dictSize; i++) {
+        if (word.length < wordLengths[i])
+          word = new byte[Math.max(wordLengths[i], 2 * word.length)];
+        dictWords.bytes(word, wordLengths[i]);
+        dict.appendWord(word, 0, wordLengths[i]);
+      }
+    }
+    data.setLocalDict(dict);
+
+    model.setAlpha(alpha);
+    model.setBeta(beta);
+    model.setK(K);
+    model.setM(M);
+    model.setV(V);
+    model.setData(data);
+    model.setZ(z);
+  }
+
+  /**
+   * write the documents, topic assignments and dictionary of model to filename.tmp and rename
+   * it to filename, so that a reader never sees a partly written file under the model's name
+   */
+  public static void write(Model model, String filename) throws IOException {
+    LDADataset data = model.getData();
+    Dictionary dict = data.getLocalDict();
+    TopicAssignments z = model.getZ();
+    int M = data.getM();
+    int dictSize = dict.size();
+
+    long numTokens = 0;
+    long numLabels = 0;
+    byte[][] uids = new byte[M][];
+    for (int m = 0; m < M; m++) {
+      Document doc = data.getDocs().get(m);
+      numTokens += doc.getLength();
+      numLabels += labelCount(doc);
+      uids[m] = String.valueOf(data.getUid(m)).getBytes(UTF8);
+    }
+    byte[][] words = new byte[dictSize][];
+    for (int i = 0; i < dictSize; i++) {
+      words[i] = dict.getWordBytes(i);
+    }
+
+    File tmp = new File(filename + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    boolean written = false;
+    try {
+      Output output = new Output(out.getChannel());
+      output.putInt(MAGIC);
+      output.putInt(VERSION);
+      output.putInt(model.getK());
+      output.putInt(M);
+      output.putInt(model.getV());
+      output.putInt(model.getLiter());
+      output.putInt(model.getConvergedIter());
+      output.putInt(dictSize);
+      output.putDouble(model.getAlpha());
+      output.putDouble(model.getBeta());
+      output.putLong(numTokens);
+      output.putLong(numLabels);
+
+      for (int m = 0; m < M; m++) {
+        output.putInt(data.getDocs().get(m).getLength());
+      }
+      for (int m = 0; m < M; m++) {
+        output.putInts(data.getDocs().get(m).getWords(), data.getDocs().get(m).getLength());
+      }
+      for (int m = 0; m < M; m++) {
+        output.putInts(data.getDocs().get(m).getCfs(), data.getDocs().get(m).getLength());
+      }
+      for (int m = 0; m < M; m++) {
+        for (int n = 0; n < data.getDocs().get(m).getLength(); n++) {
+          output.putInt(z.get(m, n));
+        }
+      }
+      for (int m = 0; m < M; m++) {
+        output.putInt(labelCount(data.getDocs().get(m)));
+      }
+      for (int m = 0; m < M; m++) {
+        int[] labels = data.getDocs().get(m).getLabels();
+        output.putInts(labels, labelCount(data.getDocs().get(m)));
+      }
+      for (int m = 0; m < M; m++) {
+        output.putInt(uids[m].length);
+      }
+      for (int i = 0; i < dictSize; i++) {
+        output.putInt(words[i].length);
+      }
+      for (int m = 0; m < M; m++) {
+        output.putBytes(uids[m]);
+      }
+      for (int i = 0; i < dictSize; i++) {
+        output.putBytes(words[i]);
+      }
+      output.flush();
+      written = true;
+    } finally {
+      out.close();
+      if (!written)
+        tmp.delete();
+    }
+    Files.move(tmp.toPath(), new File(filename).toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static int labelCount(Document doc) {
+    return doc.getLabels() != null ? doc.getLabels().length : 0;
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+
+  public int getK() {
+    return K;
+  }
+
+  public int getM() {
+    return M;
+  }
+
+  public int getV() {
+    return V;
+  }
+
+  /**
+   * the iteration at which the model was saved
+   */
+  public int getDictSize() {
+    return dictSize;
+  }
+
+  public int getLiter() {
+    return liter;
+  }
+
+  public int getConvergedIter() {
+    return convergedIter;
+  }
+
+  public double getAlpha() {
+    return alpha;
+  }
+
+  public double getBeta() {
+    return beta;
+  }
+
+  public long getNumTokens() {
+    return numTokens;
+  }
+
+  /**
+   * Sequential reader of one section. The file is mapped in windows of at most
+   * WINDOW bytes, so sections may be larger than the 2GB a single mapping can hold.
+   */
+  private class Cursor {
+    private long next;         // file position of the first byte of buffer
+    private ByteBuffer buffer; // current window, null before the first read
+
+    Cursor(long position) {
+      this.next = position;
+    }
+
+    int[] ints(int len) throws IOException {
+      int[] dst = new int[len];
+      ints(dst, 0, len);
+      return dst;
+    }
+
+    void ints(int[] dst, int off, int len) throws IOException {
+      while (len > 0) {
+        ensure(4);
+        int n = Math.min(len, buffer.remaining() / 4);
+        buffer.asIntBuffer().get(dst, off, n);
+        buffer.position(buffer.position() + 4 * n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    String string(int len) throws IOException {
+      byte[] dst = new byte[len];
+      bytes(dst, len);
+      return new String(dst, UTF8);
+    }
+
+    void bytes(byte[] dst, int len) throws IOException {
+      int off = 0;
+      while (off < len) {
+        ensure(1);
+        int n = Math.min(len - off, buffer.remaining());
+        buffer.get(dst, off, n);
+        off += n;
+      }
+    }
+
+    // map the next window if fewer than min bytes are left in the current one
+    private void ensure(int min) throws IOException {
+      if (buffer != null && buffer.remaining() >= min)
+        return;
+      if (buffer != null) {
+        next += buffer.position();
+      }
+      long size = Math.min(WINDOW, channel.size() - next);
+      if (size < min) {
+        throw new EOFException("Truncated binary model file");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, next, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * buffered little-endian writer
+   */
+  private static class Output {
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+    Output(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void putInt(int v) throws IOException {
+      if (buffer.remaining() < 4)
+        flush();
+      buffer.putInt(v);
+    }
+
+    void putLong(long v) throws IOException {
+      if (buffer.remaining() < 8)
+        flush();
+      buffer.putLong(v);
+    }
+
+    void putDouble(double v) throws IOException {
+      if (buffer.remaining() < 8)
+        flush();
+      buffer.putDouble(v);
+    }
+
+    void putInts(int[] a, int len) throws IOException {
+      int off = 0;
+      while (off < len) {
+        if (buffer.remaining() < 4)
+          flush();
+        int n = Math.min(len - off, buffer.remaining() / 4);
+        buffer.asIntBuffer().put(a, off, n);
+        buffer.position(buffer.position() + 4 * n);
+        off += n;
+      }
+    }
+
+    void putBytes(byte[] a) throws IOException {
+      int off = 0;
+      while (off < a.length) {
+        if (!buffer.hasRemaining())
+          flush();
+        int n = Math.min(a.length - off, buffer.remaining());
+        buffer.put(a, off, n);
+        off += n;
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
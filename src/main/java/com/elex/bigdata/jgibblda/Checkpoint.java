@@ -0,0 +1,298 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Estimation checkpoints (-checkpoint) and resuming from them (-resume). A checkpoint holds
+ * what the counts cannot be rebuilt without: the topic assignments z, the iteration reached
+ * and the state of every sampling random stream. At a checkpoint the sampling thread only
+ * copies z and the generator states; a background thread writes them to a temporary file
+ * and renames it over the previous checkpoint, so there always is one complete checkpoint.
+ *
+ * File layout, little-endian: magic, version, K, z element width, M, liter, start iteration,
+ * number of streams (ints), seed, number of tokens, data fingerprint (longs), then every
+ * stream as (int stream, long s0, long s1), then z in corpus order at its element width.
+ */
+public class Checkpoint {
+  public static final int MAGIC = 0x4b43444c; // "LDCK"
+  public static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 56;
+
+  private int K;
+  private int width;
+  private int M;
+  private int liter;       // last finished iteration
+  private int startIter;   // first iteration of the run, the run ends at startIter - 1 + niters
+  private long seed;
+  private long numTokens;
+  private long fingerprint;
+  private int[] streams;   // random stream numbers
+  private long[][] states; // states[i]: generator state of stream streams[i]
+  private TopicAssignments z; // z of a snapshot
+  private ByteBuffer zBuffer; // z section of a checkpoint that was read
+
+  private Checkpoint() {
+  }
+
+  /**
+   * snapshot the estimation state after iteration liter; copies z
+   */
+  public static Checkpoint snapshot(Model model, long fingerprint, int startIter, int liter,
+                                    int[] streams, FastRandom[] randoms) {
+    Checkpoint checkpoint = new Checkpoint();
+    checkpoint.K = model.getK();
+    checkpoint.M = model.getM();
+    checkpoint.liter = liter;
+    checkpoint.startIter = startIter;
+    checkpoint.seed = model.getSeed();
+    checkpoint.fingerprint = fingerprint;
+    checkpoint.z = model.getZ().copy();
+    checkpoint.width = checkpoint.z.getWidth();
+    checkpoint.numTokens = checkpoint.z.getNumTokens();
+    checkpoint.streams = streams.clone();
+    checkpoint.states = new long[randoms.length][];
+    for (int i = 0; i < randoms.length; i++) {
+      checkpoint.states[i] = randoms[i].getState();
+    }
+    return checkpoint;
+  }
+
+  /**
+   * fingerprint of the documents, words and cfs of the first M documents of data,
+   * to recognise a checkpoint of a different dataset
+   */
+  public static long fingerprint(LDADataset data, int M) {
+    long h = 0xcbf29ce484222325L;
+    for (int m = 0; m < M; m++) {
+      Document doc = data.getDocs().get(m);
+      h = (h ^ doc.getLength()) * 0x100000001b3L;
+      for (int n = 0; n < doc.getLength(); n++) {
+        h = (h ^ doc.getWords()[n]) * 0x100000001b3L;
+        h = (h ^ doc.getCfs()[n]) * 0x100000001b3L;
+      }
+    }
+    return h;
+  }
+
+  /**
+   * write the checkpoint to filename.tmp and rename it to filename
+   */
+  public void write(String filename) throws IOException {
+    File tmp = new File(filename + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      FileChannel channel = out.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(K);
+      buffer.putInt(width);
+      buffer.putInt(M);
+      buffer.putInt(liter);
+      buffer.putInt(startIter);
+      buffer.putInt(streams.length);
+      buffer.putLong(seed);
+      buffer.putLong(numTokens);
+      buffer.putLong(fingerprint);
+      for (int i = 0; i < streams.length; i++) {
+        buffer.putInt(streams[i]);
+        buffer.putLong(states[i][0]);
+        buffer.putLong(states[i][1]);
+      }
+      for (int pos = 0; pos < numTokens; pos++) {
+        if (buffer.remaining() < 4)
+          flush(channel, buffer);
+        int topic = z.getAt(pos);
+        if (width == 1) {
+          buffer.put((byte) topic);
+        } else if (width == 2) {
+          buffer.putShort((short) topic);
+        } else {
+          buffer.putInt(topic);
+        }
+      }
+      flush(channel, buffer);
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), new File(filename).toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  public static Checkpoint read(String filename) throws IOException {
+    FileInputStream in = new FileInputStream(filename);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        .order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+        throw new IOException("Not a checkpoint file: " + filename);
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported checkpoint version: " + version);
+      }
+
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.K = buffer.getInt();
+      checkpoint.width = buffer.getInt();
+      checkpoint.M = buffer.getInt();
+      checkpoint.liter = buffer.getInt();
+      checkpoint.startIter = buffer.getInt();
+      int numStreams = buffer.getInt();
+      checkpoint.seed = buffer.getLong();
+      checkpoint.numTokens = buffer.getLong();
+      checkpoint.fingerprint = buffer.getLong();
+      if (buffer.remaining() != numStreams * 20L + checkpoint.numTokens * checkpoint.width) {
+        throw new EOFException("Truncated checkpoint file: " + filename);
+      }
+
+      checkpoint.streams = new int[numStreams];
+      checkpoint.states = new long[numStreams][];
+      for (int i = 0; i < numStreams; i++) {
+        checkpoint.streams[i] = buffer.getInt();
+        checkpoint.states[i] = new long[] {buffer.getLong(), buffer.getLong()};
+      }
+
+      // z is read into the model's assignments by restore()
+      checkpoint.zBuffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+      return checkpoint;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Put the checkpointed z into model and rebuild its counts. The model must hold the
+   * dataset the checkpoint was taken on.
+   */
+  public void restore(Model model, long fingerprint) throws IOException {
+    TopicAssignments modelZ = model.getZ();
+    if (K != model.getK() || M != model.getM() || numTokens != modelZ.getNumTokens()
+      || this.fingerprint != fingerprint) {
+      throw new IOException("The checkpoint was taken on a different dataset or number of topics");
+    }
+    ByteBuffer buffer = zBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    for (int pos = 0; pos < numTokens; pos++) {
+      int topic = width == 1 ? buffer.get() & 0xff : width == 2 ? buffer.getShort() & 0xffff : buffer.getInt();
+      if (topic >= K) {
+        throw new IOException("Invalid topic in checkpoint: " + topic);
+      }
+      modelZ.setAt(pos, topic);
+    }
+    model.recount();
+  }
+
+  /**
+   * state of random stream stream, null if the checkpoint has none
+   */
+  public long[] getState(int stream) {
+    for (int i = 0; i < streams.length; i++) {
+      if (streams[i] == stream)
+        return states[i];
+    }
+    return null;
+  }
+
+  public int getNumStreams() {
+    return streams.length;
+  }
+
+  public int getLiter() {
+    return liter;
+  }
+
+  public int getStartIter() {
+    return startIter;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Takes checkpoints of an estimation every few iterations, writing them on a background
+   * thread. A checkpoint waits for the previous one to be written, so at most one copy of
+   * z is held besides the model's own.
+   */
+  public static class Writer {
+    private String filename;
+    private ExecutorService executor;
+    private Future<?> pending = null;
+
+    public Writer(String filename) {
+      this.filename = filename;
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "checkpoint-writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    public void write(final Checkpoint checkpoint) {
+      waitPending();
+      pending = executor.submit(new Runnable() {
+        public void run() {
+          try {
+            checkpoint.write(filename);
+          } catch (IOException e) {
+            // a failed checkpoint does not stop the estimation
+            System.out.println("\nError while writing checkpoint " + filename + ": " + e.getMessage());
+          }
+        }
+      });
+    }
+
+    /**
+     * wait for the last checkpoint to be written and stop the writer thread;
+     * with delete the checkpoint file is removed, once the final model has been saved
+     */
+    public void close(boolean delete) {
+      waitPending();
+      executor.shutdown();
+      if (delete) {
+        new File(filename).delete();
+      }
+    }
+
+    private void waitPending() {
+      if (pending == null)
+        return;
+      try {
+        pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while writing checkpoint", e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Error in checkpoint thread", e.getCause());
+      }
+      pending = null;
+    }
+  }
+}
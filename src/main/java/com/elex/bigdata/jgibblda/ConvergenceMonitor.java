@@ -0,0 +1,194 @@
+package com.elex.bigdata.jgibblda;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Early stopping for estimation and inference (-convthreshold, -convchangerate). Every
+ * -convinterval iterations the log-likelihood of the current assignments is computed from the
+ * count matrices and compared with the previous check, and the owner reports the fraction of
+ * topic assignments that changed in the last sweep. A check is stale when the relative
+ * improvement is below -convthreshold and the change rate is below -convchangerate, each
+ * criterion only counting when it is set; after -convpatience consecutive stale checks the
+ * chain is considered converged. Checks only start after the burn-in, so a stopped run still
+ * averages theta/phi over the samples taken after nburnin.
+ */
+public class ConvergenceMonitor {
+  private double threshold;
+  private double changeRateThreshold;
+  private int interval;
+  private int patience;
+  private int nburnin;
+
+  private double lastLogLikelihood = Double.NaN;
+  private int stale = 0; // consecutive checks below the threshold
+
+  public ConvergenceMonitor(LDACmdOption option, int nburnin) {
+    this.threshold = option.convThreshold;
+    this.changeRateThreshold = option.convChangeRate;
+    this.interval = Math.max(1, option.convInterval);
+    this.patience = Math.max(1, option.convPatience);
+    this.nburnin = nburnin;
+  }
+
+  /**
+   * whether option asks for early stopping
+   */
+  public static boolean isEnabled(LDACmdOption option) {
+    return option.convThreshold > 0 || option.convChangeRate > 0;
+  }
+
+  /**
+   * whether iteration liter is a convergence check
+   */
+  public boolean isCheck(int liter) {
+    return liter > nburnin && liter % interval == 0;
+  }
+
+  /**
+   * record the state after a check iteration
+   * @param changeRate fraction of tokens whose topic changed in the last sweep
+   * @return true if the chain has converged
+   */
+  public boolean check(int liter, double logLikelihood, double changeRate) {
+    boolean improved = false;
+    if (threshold > 0) {
+      improved = Double.isNaN(lastLogLikelihood)
+        || (logLikelihood - lastLogLikelihood) / Math.abs(lastLogLikelihood) >= threshold;
+    }
+    boolean changing = changeRateThreshold > 0 && changeRate >= changeRateThreshold;
+    stale = improved || changing ? 0 : stale + 1;
+    lastLogLikelihood = logLikelihood;
+
+    // print below the progress counter and restore it
+    System.out.format("%nIteration %d: log-likelihood %.6e, z changed %.4f%%%nIteration%6d",
+      liter, logLikelihood, 100 * changeRate, liter);
+    return stale >= patience;
+  }
+
+  /**
+   * log p(w, z) of an estimated model, from the non-zero entries of nw and nd
+   */
+  public static double logLikelihood(Model model) {
+    int K = model.getK();
+    double alpha = model.getAlpha();
+    double beta = model.getBeta();
+    double Vbeta = model.getV() * beta;
+    double lgBeta = logGamma(beta);
+    double lgAlpha = logGamma(alpha);
+
+    double ll = 0;
+    CountMatrix nw = model.getNw();
+    for (int w = 0; w < model.getV(); w++) {
+      int[] page = nw.page(w);
+      int off = nw.offset(w);
+      for (int k = 0; k < K; k++) {
+        if (page[off + k] != 0)
+          ll += logGamma(page[off + k] + beta) - lgBeta;
+      }
+    }
+    for (int k = 0; k < K; k++) {
+      ll += logGamma(Vbeta) - logGamma(model.getNwsum()[k] + Vbeta);
+    }
+
+    ll += docLogLikelihood(model, lgAlpha);
+    return ll;
+  }
+
+  /**
+   * log p(w, z) of the new data given the trained counts. With -infseparately every
+   * document is scored against its own counts nw_inf/nwsum_inf.
+   */
+  public static double logLikelihood(Model newModel, TrainedCounts trained, boolean separately) {
+    int K = newModel.getK();
+    double alpha = newModel.getAlpha();
+    double beta = newModel.getBeta();
+    double Vbeta = trained.getVbeta();
+    int[] trnNwsum = trained.getNwsum();
+    CountMatrix trnNw = trained.getNw();
+
+    double ll = 0;
+    if (separately) {
+      for (int m = 0; m < newModel.getM(); m++) {
+        TIntObjectHashMap<int[]> nw_inf_m = newModel.getNw_inf().get(m);
+        for (int _w : nw_inf_m.keys()) {
+          ll += wordLogLikelihood(trnNw.page(_w), trnNw.offset(_w), nw_inf_m.get(_w), 0, K, beta);
+        }
+        ll += sumLogLikelihood(trnNwsum, newModel.getNwsum_inf()[m], K, Vbeta);
+      }
+    } else {
+      CountMatrix nw = newModel.getNw();
+      for (int _w = 0; _w < newModel.getV(); _w++) {
+        ll += wordLogLikelihood(trnNw.page(_w), trnNw.offset(_w), nw.page(_w), nw.offset(_w), K, beta);
+      }
+      ll += sumLogLikelihood(trnNwsum, newModel.getNwsum(), K, Vbeta);
+    }
+
+    ll += docLogLikelihood(newModel, logGamma(alpha));
+    return ll;
+  }
+
+  // sum_k log Gamma(trn + new + beta) - log Gamma(trn + beta) over topics with new counts
+  private static double wordLogLikelihood(int[] trnPage, int trnOff, int[] page, int off, int K, double beta) {
+    double ll = 0;
+    for (int k = 0; k < K; k++) {
+      if (page[off + k] != 0) {
+        int trn = trnPage[trnOff + k];
+        ll += logGamma(trn + page[off + k] + beta) - logGamma(trn + beta);
+      }
+    }
+    return ll;
+  }
+
+  // sum_k log Gamma(trn nwsum + Vbeta) - log Gamma(trn nwsum + new nwsum + Vbeta)
+  private static double sumLogLikelihood(int[] trnNwsum, int[] nwsum, int K, double Vbeta) {
+    double ll = 0;
+    for (int k = 0; k < K; k++) {
+      if (nwsum[k] != 0)
+        ll += logGamma(trnNwsum[k] + Vbeta) - logGamma(trnNwsum[k] + nwsum[k] + Vbeta);
+    }
+    return ll;
+  }
+
+  // log p(z) = sum_m log Gamma(K alpha) - log Gamma(ndsum + K alpha) + sum_k log Gamma(nd + alpha) - log Gamma(alpha)
+  private static double docLogLikelihood(Model model, double lgAlpha) {
+    int K = model.getK();
+    double alpha = model.getAlpha();
+    double lgKalpha = logGamma(K * alpha);
+    DocTopicCounts nd = model.getNd();
+    int[] topics = new int[K];
+    int[] counts = new int[K];
+
+    double ll = 0;
+    for (int m = 0; m < model.getM(); m++) {
+      int size = nd.nonZero(m, topics, counts);
+      for (int i = 0; i < size; i++) {
+        ll += logGamma(counts[i] + alpha) - lgAlpha;
+      }
+      ll += lgKalpha - logGamma(model.getNdsum()[m] + K * alpha);
+    }
+    return ll;
+  }
+
+  /**
+   * log Gamma(x) for x > 0 (Lanczos approximation, g = 7, n = 9)
+   */
+  static double logGamma(double x) {
+    if (x < 0.5) {
+      // reflection formula
+      return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+    }
+    x -= 1;
+    double a = LANCZOS[0];
+    double t = x + 7.5;
+    for (int i = 1; i < LANCZOS.length; i++) {
+      a += LANCZOS[i] / (x + i);
+    }
+    return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(a);
+  }
+
+  private static final double[] LANCZOS = {
+    0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+    -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6,
+    1.5056327351493116e-7
+  };
+}
@@ -0,0 +1,109 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.Arrays;
+
+/**
+ * Dense rows x cols int matrix (nw: V x K, dense nd: M x K) stored row-major in flat int arrays
+ * instead of one small array per row. Element (row, k) lives at page(row)[offset(row) + k].
+ * A matrix with more than MAX_PAGE elements is split into pages of a power-of-two number of
+ * whole rows, so a row never straddles two pages and rows * cols may exceed Integer.MAX_VALUE.
+ * Hot loops should fetch page(row) and offset(row) once and index the array directly.
+ */
+public class CountMatrix {
+  private static final int MAX_PAGE = 1 << 30; // max elements per page
+
+  private int rows;
+  private int cols;
+  private int shift; // rows per page = 1 << shift
+  private int mask;
+  private int[][] pages;
+
+  public CountMatrix(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+
+    if ((long) rows * cols <= MAX_PAGE) {
+      shift = 31; // a single page
+    } else {
+      shift = 31 - Integer.numberOfLeadingZeros(MAX_PAGE / cols);
+    }
+    long rowsPerPage = 1L << shift;
+    mask = (int) (rowsPerPage - 1);
+
+    int numPages = (int) Math.max(1, (rows + rowsPerPage - 1) / rowsPerPage);
+    pages = new int[numPages][];
+    for (int i = 0; i < numPages; i++) {
+      long pageRows = Math.min(rowsPerPage, rows - i * rowsPerPage);
+      pages[i] = new int[(int) (pageRows * cols)];
+    }
+  }
+
+  /**
+   * the array holding row
+   */
+  public int[] page(int row) {
+    return pages[row >>> shift];
+  }
+
+  /**
+   * index of (row, 0) in page(row)
+   */
+  public int offset(int row) {
+    return (row & mask) * cols;
+  }
+
+  /**
+   * first row after row that is not stored in page(row); rows row..pageEnd(row)-1 are a
+   * contiguous range of page(row) starting at offset(row)
+   */
+  public int pageEnd(int row) {
+    return (int) Math.min(rows, ((row >>> shift) + 1L) << shift);
+  }
+
+  public int get(int row, int k) {
+    return pages[row >>> shift][(row & mask) * cols + k];
+  }
+
+  public void set(int row, int k, int value) {
+    pages[row >>> shift][(row & mask) * cols + k] = value;
+  }
+
+  public void add(int row, int k, int delta) {
+    pages[row >>> shift][(row & mask) * cols + k] += delta;
+  }
+
+  /**
+   * set all counts to zero
+   */
+  public void clear() {
+    for (int[] page : pages) {
+      Arrays.fill(page, 0);
+    }
+  }
+
+  /**
+   * copy rows [from, to) of other, which must have the same shape, into this matrix
+   */
+  public void copyRows(CountMatrix other, int from, int to) {
+    for (int row = from; row < to; ) {
+      // copy runs of rows within one page at once
+      int end = Math.min(to, pageEnd(row));
+      System.arraycopy(other.page(row), other.offset(row), page(row), offset(row), (end - row) * cols);
+      row = end;
+    }
+  }
+
+  public CountMatrix copy() {
+    CountMatrix copy = new CountMatrix(rows, cols);
+    copy.copyRows(this, 0, rows);
+    return copy;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public int getCols() {
+    return cols;
+  }
+}
@@ -27,57 +27,83 @@
  */
 package com.elex.bigdata.jgibblda;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-
-import gnu.trove.map.hash.TObjectIntHashMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
 
+/**
+ * Word/id map of the corpus. The words, mostly long URLs, are stored once as UTF-8 in a
+ * single byte arena: word id is arena[offsets[id] .. offsets[id + 1]). Words are looked up
+ * through an open-addressing (linear probing) table of ids hashed on those byte slices, so
+ * the dictionary holds no String per word and getWord decodes one on demand. The arena
+ * holds at most 2GB of words. Lookups may run concurrently, adding words may not.
+ * writeIndex saves these arrays as they are, for MappedDictionary.
+ */
 public class Dictionary {
-  private TObjectIntHashMap<String> word2id;
-  private TIntObjectHashMap<String> id2word;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int MAX_ARENA = Integer.MAX_VALUE - 8;
+
+  // per-thread buffer to encode looked up words into
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    protected byte[] initialValue() {
+      return new byte[256];
+    }
+  };
+
+  private byte[] arena = new byte[1 << 12];
+  private int[] offsets = new int[257]; // offsets[id]: start of word id, offsets[size]: end
+  private int[] hashes = new int[256];  // hashes[id]: hash of word id
+  private int[] table = new int[512];   // id + 1 of the word in every slot, 0 if empty
+  private int size = 0;
 
   //--------------------------------------------------
   // constructors
   //--------------------------------------------------
 
   public Dictionary(){
-    word2id = new TObjectIntHashMap<String>();
-    id2word = new TIntObjectHashMap<String>();
-  }
-
-  public TObjectIntHashMap<String> getWord2id() {
-    return word2id;
-  }
-
-  public void setWord2id(TObjectIntHashMap<String> word2id) {
-    this.word2id = word2id;
-  }
-
-  public TIntObjectHashMap<String> getId2word() {
-    return id2word;
-  }
-
-  public void setId2word(TIntObjectHashMap<String> id2word) {
-    this.id2word = id2word;
   }
 
   //---------------------------------------------------
   // get/set methods
   //---------------------------------------------------
 
+  /**
+   * number of ids, the next id addWord gives
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * word of id, null if there is no such id
+   */
   public String getWord(int id){
-    return id2word.get(id);
+    if (!contains(id))
+      return null;
+    return new String(arena, offsets[id], offsets[id + 1] - offsets[id], UTF8);
+  }
+
+  /**
+   * UTF-8 bytes of word id, a copy
+   */
+  public byte[] getWordBytes(int id) {
+    return Arrays.copyOfRange(arena, offsets[id], offsets[id + 1]);
   }
 
+  /**
+   * id of word, -1 if it is not in this dictionary
+   */
   public int getID(String word){
-    return word2id.get(word);
+    byte[] bytes = scratch(word.length());
+    int length = encode(word, bytes);
+    return find(bytes, length, hash(bytes, 0, length));
   }
 
   //----------------------------------------------------
@@ -87,11 +113,11 @@ public class Dictionary {
    * check if this dictionary contains a specified word
    */
   public boolean contains(String word){
-    return word2id.containsKey(word);
+    return getID(word) >= 0;
   }
 
   public boolean contains(int id){
-    return id2word.containsKey(id);
+    return id >= 0 && id < size;
   }
   //---------------------------------------------------
   // manupulating methods
@@ -101,38 +127,185 @@ public class Dictionary {
    * return the corresponding id
    */
   public int addWord(String word){
-    if (!contains(word)){
-      int id = word2id.size();
+    byte[] bytes = scratch(word.length());
+    int length = encode(word, bytes);
+    int hash = hash(bytes, 0, length);
+    int id = find(bytes, length, hash);
+    if (id >= 0)
+      return id;
+    id = append(bytes, 0, length, hash);
+    index(id);
+    return id;
+  }
 
-      word2id.put(word, id);
-      id2word.put(id,word);
+  /**
+   * Add the word of the UTF-8 bytes utf8[off .. off + len) under the next id, as reading a
+   * word map does: a word that is already in the dictionary is then looked up as the new id.
+   * @return the id
+   */
+  public int appendWord(byte[] utf8, int off, int len) {
+    int id = append(utf8, off, len, hash(utf8, off, len));
+    index(id);
+    return id;
+  }
 
-      return id;
+  // copy a word to the end of the arena, without indexing it
+  private int append(byte[] bytes, int off, int len, int hash) {
+    int end = offsets[size];
+    if (len > MAX_ARENA - end) {
+      throw new IllegalStateException("Dictionary is full: words take more than 2GB");
+    }
+    if (end + len > arena.length) {
+      arena = Arrays.copyOf(arena, (int) Math.min(MAX_ARENA, Math.max(end + len, 2L * arena.length)));
+    }
+    System.arraycopy(bytes, off, arena, end, len);
+    if (size == hashes.length) {
+      int capacity = 2 * hashes.length;
+      hashes = Arrays.copyOf(hashes, capacity);
+      offsets = Arrays.copyOf(offsets, capacity + 1);
+    }
+    hashes[size] = hash;
+    offsets[size + 1] = end + len;
+    return size++;
+  }
+
+  // put word id in the table, in place of an equal word
+  private void index(int id) {
+    if (2 * size > table.length) {
+      table = new int[2 * table.length];
+      for (int i = 0; i < size; i++) {
+        if (i != id)
+          index(i);
+      }
+    }
+    int mask = table.length - 1;
+    int start = offsets[id];
+    int length = offsets[id + 1] - start;
+    for (int slot = hashes[id] & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0 || (hashes[entry - 1] == hashes[id] && equals(entry - 1, arena, start, length))) {
+        table[slot] = id + 1;
+        return;
+      }
+    }
+  }
+
+  // id of the word bytes[0 .. length) with hash hash, -1 if absent
+  private int find(byte[] bytes, int length, int hash) {
+    int mask = table.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0)
+        return -1;
+      if (hashes[entry - 1] == hash && equals(entry - 1, bytes, 0, length))
+        return entry - 1;
     }
-    else return getID(word);
+  }
+
+  // whether word id is bytes[off .. off + length)
+  private boolean equals(int id, byte[] bytes, int off, int length) {
+    int start = offsets[id];
+    if (offsets[id + 1] - start != length)
+      return false;
+    for (int i = 0; i < length; i++) {
+      if (arena[start + i] != bytes[off + i])
+        return false;
+    }
+    return true;
+  }
+
+  // FNV-1a of the bytes, with the bits mixed down for the table slot
+  static int hash(byte[] bytes, int off, int len) {
+    int h = 0x811c9dc5;
+    for (int i = off; i < off + len; i++) {
+      h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  // the calling thread's buffer, large enough for the UTF-8 of a word of length chars
+  static byte[] scratch(int length) {
+    byte[] bytes = SCRATCH.get();
+    if (bytes.length < 3 * length) {
+      bytes = new byte[3 * length];
+      SCRATCH.set(bytes);
+    }
+    return bytes;
+  }
+
+  // UTF-8 of s into bytes, unpaired surrogates as '?' like String.getBytes; returns the length
+  static int encode(String s, byte[] bytes) {
+    int pos = 0;
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        bytes[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[pos++] = (byte) (0xc0 | (c >> 6));
+        bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+        bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        bytes[pos++] = (byte) '?';
+      } else {
+        bytes[pos++] = (byte) (0xe0 | (c >> 12));
+        bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return pos;
   }
 
   //---------------------------------------------------
   // I/O methods
   //---------------------------------------------------
   /**
-   * read dictionary from file
+   * Read dictionary from file: one word per line, its id is the line number. Lines are split
+   * and trimmed on the UTF-8 bytes as BufferedReader.readLine and String.trim would do.
    */
   public boolean readWordMap(String wordMapFile)
   {
     try {
-      BufferedReader reader = new BufferedReader(new InputStreamReader(
-        new GZIPInputStream(
-          new FileInputStream(wordMapFile)), "UTF-8"));
-      String line;
-
-      for (int i = 0; (line = reader.readLine()) != null; i++) {
-        String word = line.trim();
-        id2word.put(i, word);
-        word2id.put(word, i);
+      InputStream in = new GZIPInputStream(new FileInputStream(wordMapFile), 1 << 16);
+      try {
+        byte[] buf = new byte[1 << 16];
+        byte[] line = new byte[256];
+        int length = 0;
+        boolean open = false; // bytes or an empty line since the last line break
+        boolean cr = false;   // the last byte was '\r'
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          for (int i = 0; i < n; i++) {
+            byte b = buf[i];
+            if (b == '\n' && cr) {
+              cr = false;
+            } else if (b == '\n' || b == '\r') {
+              addLine(line, length);
+              length = 0;
+              open = false;
+              cr = b == '\r';
+            } else {
+              if (length == line.length)
+                line = Arrays.copyOf(line, 2 * line.length);
+              line[length++] = b;
+              open = true;
+              cr = false;
+            }
+          }
+        }
+        if (open)
+          addLine(line, length);
+      } finally {
+        in.close();
       }
-
-      reader.close();
       return true;
     }
     catch (Exception e) {
@@ -142,16 +315,32 @@ public class Dictionary {
     }
   }
 
+  // add a word map line, trimmed
+  private void addLine(byte[] line, int length) {
+    int start = 0;
+    while (start < length && (line[start] & 0xff) <= ' ')
+      start++;
+    while (length > start && (line[length - 1] & 0xff) <= ' ')
+      length--;
+    appendWord(line, start, length - start);
+  }
+
   public boolean writeWordMap(String wordMapFile)
+  {
+    return writeWordMap(wordMapFile, GzipTextOutput.level(GzipTextOutput.DEFAULT));
+  }
+
+  /**
+   * write the word map with deflate level compression, see GzipTextOutput
+   */
+  public boolean writeWordMap(String wordMapFile, int compression)
   {
     try {
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-        new GZIPOutputStream(
-          new FileOutputStream(wordMapFile)), "UTF-8"));
+      GzipTextOutput writer = new GzipTextOutput(wordMapFile, compression);
 
       //write word to id
-      for (int i = 0; i < id2word.size(); i++) {
-        writer.write(id2word.get(i) + "\n");
+      for (int i = 0; i < size; i++) {
+        writer.write(arena, offsets[i], offsets[i + 1] - offsets[i]).write('\n');
       }
 
       writer.close();
@@ -163,4 +352,62 @@ public class Dictionary {
       return false;
     }
   }
+
+  /**
+   * write the words and their hash table uncompressed, to be mapped by MappedDictionary
+   */
+  public boolean writeIndex(String indexFile)
+  {
+    try {
+      FileOutputStream out = new FileOutputStream(indexFile);
+      try {
+        FileChannel channel = out.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MappedDictionary.MAGIC);
+        buffer.putInt(MappedDictionary.VERSION);
+        buffer.putInt(size);
+        buffer.putInt(table.length);
+        buffer.putInt(offsets[size]);
+        buffer.putInt(0);
+        putInts(channel, buffer, table, table.length);
+        putInts(channel, buffer, hashes, size);
+        putInts(channel, buffer, offsets, size + 1);
+        for (int off = 0; off < offsets[size]; ) {
+          if (!buffer.hasRemaining())
+            flush(channel, buffer);
+          int n = Math.min(offsets[size] - off, buffer.remaining());
+          buffer.put(arena, off, n);
+          off += n;
+        }
+        flush(channel, buffer);
+      } finally {
+        out.close();
+      }
+      return true;
+    }
+    catch (Exception e) {
+      System.out.println("Error while writing word map index " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private static void putInts(FileChannel channel, ByteBuffer buffer, int[] a, int len) throws IOException {
+    for (int off = 0; off < len; ) {
+      if (buffer.remaining() < 4)
+        flush(channel, buffer);
+      int n = Math.min(len - off, buffer.remaining() / 4);
+      buffer.asIntBuffer().put(a, off, n);
+      buffer.position(buffer.position() + 4 * n);
+      off += n;
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
 }
@@ -0,0 +1,268 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.Arrays;
+
+/**
+ * nd: the number of words of every document assigned to every topic. Dense, this is an M x K
+ * CountMatrix. Sparse (-sparsend), a document only stores its topics with a count, ascending,
+ * and their counts: a labelled document whose words are all assigned to its labels stores
+ * counts aligned with its label array (shared with the Document), any other document a list of
+ * the distinct topics of its words. Only the topics of a document's words can have a count,
+ * so a short document takes a few entries whatever K is.
+ *
+ * Samplers work on one document at a time through a Cursor, which exposes the counts of the
+ * current document as a dense row: the matrix row itself, or for sparse counts a scratch row
+ * that is unpacked when the document is opened and packed again when the next one is opened
+ * or the cursor is closed. A document must only be open in one cursor at a time.
+ */
+public class DocTopicCounts {
+  private Model model;
+  private int M;
+  private int K;
+  private CountMatrix dense; // dense counts, null if sparse
+  private int[][] topics;    // sparse: topics[m], ascending, the label array of a labelled document
+  private int[][] counts;    // sparse: counts[m][i], count of topics[m][i]
+  private Cursor rebuilder;  // scratch of rebuild()
+
+  private static final int[] EMPTY = new int[0];
+
+  public DocTopicCounts(Model model, int M, int K, boolean sparse) {
+    this.model = model;
+    this.M = M;
+    this.K = K;
+    if (sparse) {
+      topics = new int[M][];
+      counts = new int[M][];
+      Arrays.fill(topics, EMPTY);
+      Arrays.fill(counts, EMPTY);
+    } else {
+      dense = new CountMatrix(M, K);
+    }
+  }
+
+  public boolean isSparse() {
+    return dense == null;
+  }
+
+  /**
+   * set the counts of document m from its topic assignments
+   */
+  public void rebuild(int m) {
+    Document doc = model.getData().getDocs().get(m);
+    TopicAssignments z = model.getZ();
+    if (dense != null) {
+      int[] page = dense.page(m);
+      int off = dense.offset(m);
+      Arrays.fill(page, off, off + K, 0);
+      for (int n = 0; n < doc.getLength(); n++) {
+        page[off + z.get(m, n)] += doc.getCfs()[n];
+      }
+      return;
+    }
+    if (rebuilder == null)
+      rebuilder = cursor();
+    int[] row = rebuilder.row;
+    for (int n = 0; n < doc.getLength(); n++) {
+      row[z.get(m, n)] += doc.getCfs()[n];
+    }
+    store(m, row, rebuilder);
+  }
+
+  /**
+   * The topics of document m with a non-zero count, ascending, into topics and their counts
+   * into counts (both of size K).
+   * @return number of topics
+   */
+  public int nonZero(int m, int[] topics, int[] counts) {
+    int n = 0;
+    if (dense != null) {
+      int[] page = dense.page(m);
+      int off = dense.offset(m);
+      for (int k = 0; k < K; k++) {
+        if (page[off + k] != 0) {
+          topics[n] = k;
+          counts[n++] = page[off + k];
+        }
+      }
+    } else {
+      int[] docTopics = this.topics[m];
+      int[] docCounts = this.counts[m];
+      for (int i = 0; i < docCounts.length; i++) {
+        if (docCounts[i] != 0) {
+          topics[n] = docTopics[i];
+          counts[n++] = docCounts[i];
+        }
+      }
+    }
+    return n;
+  }
+
+  public int get(int m, int k) {
+    if (dense != null)
+      return dense.get(m, k);
+    int[] docTopics = topics[m];
+    int i = Arrays.binarySearch(docTopics, k);
+    return i >= 0 ? counts[m][i] : 0;
+  }
+
+  // unpack the counts of document m into row, which is all zeros
+  private void load(int m, int[] row) {
+    int[] docTopics = topics[m];
+    int[] docCounts = counts[m];
+    for (int i = 0; i < docCounts.length; i++) {
+      row[docTopics[i]] = docCounts[i];
+    }
+  }
+
+  // pack row into the counts of document m and clear it, with the scratch of cursor
+  private void store(int m, int[] row, Cursor cursor) {
+    Document doc = model.getData().getDocs().get(m);
+    TopicAssignments z = model.getZ();
+    int[] found = cursor.found;
+    int[] pos = cursor.pos;
+
+    // the distinct topics of the document's words with a count
+    int n = 0;
+    for (int i = 0; i < doc.getLength(); i++) {
+      int k = z.get(m, i);
+      if (row[k] != 0 && pos[k] < 0) {
+        pos[k] = n;
+        found[n++] = k;
+      }
+    }
+
+    int[] labels = doc.getLabels();
+    int inLabels = 0;
+    if (labels != null) {
+      for (int label : labels) {
+        if (pos[label] >= 0)
+          inLabels++;
+      }
+    }
+
+    if (labels != null && labels.length > 0 && inLabels == n) {
+      // all words are assigned to labels: counts aligned with the label array
+      int[] docCounts = counts[m];
+      if (topics[m] != labels || docCounts.length != labels.length)
+        docCounts = new int[labels.length];
+      for (int i = 0; i < labels.length; i++) {
+        docCounts[i] = row[labels[i]];
+      }
+      topics[m] = labels;
+      counts[m] = docCounts;
+    } else {
+      Arrays.sort(found, 0, n);
+      int[] docTopics = topics[m];
+      int[] docCounts = counts[m];
+      if (docTopics == labels || docTopics.length != n) {
+        docTopics = n == 0 ? EMPTY : new int[n];
+        docCounts = n == 0 ? EMPTY : new int[n];
+      }
+      for (int i = 0; i < n; i++) {
+        docTopics[i] = found[i];
+        docCounts[i] = row[found[i]];
+      }
+      topics[m] = docTopics;
+      counts[m] = docCounts;
+    }
+
+    for (int i = 0; i < n; i++) {
+      row[found[i]] = 0;
+      pos[found[i]] = -1;
+    }
+  }
+
+  /**
+   * a cursor for one sampler
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * The counts of the document a sampler works on as a dense row: page()[offset() + k].
+   */
+  public class Cursor {
+    private int doc = -1;
+    private int[] page;
+    private int offset;
+    private int[] row;   // sparse: unpacked counts of doc
+    private int[] found; // sparse: scratch of store
+    private int[] pos;
+
+    private Cursor() {
+      if (dense == null) {
+        row = new int[K];
+        found = new int[K];
+        pos = new int[K];
+        Arrays.fill(pos, -1);
+      }
+    }
+
+    /**
+     * make document m the current document, storing the previous one
+     */
+    public void open(int m) {
+      if (m == doc)
+        return;
+      close();
+      if (dense != null) {
+        page = dense.page(m);
+        offset = dense.offset(m);
+      } else {
+        load(m, row);
+        page = row;
+        offset = 0;
+      }
+      doc = m;
+    }
+
+    /**
+     * store the current document; samplers close their cursor after every sweep
+     */
+    public void close() {
+      if (doc >= 0 && dense == null) {
+        store(doc, row, this);
+      }
+      doc = -1;
+    }
+
+    public int[] page() {
+      return page;
+    }
+
+    public int offset() {
+      return offset;
+    }
+
+    /**
+     * the topics of the current document with a non-zero count, ascending, into topics;
+     * only valid right after open()
+     * @return number of topics
+     */
+    public int nonZero(int[] topics) {
+      int n = 0;
+      if (dense != null) {
+        for (int k = 0; k < K; k++) {
+          if (page[offset + k] != 0)
+            topics[n++] = k;
+        }
+      } else {
+        int[] docTopics = DocTopicCounts.this.topics[doc];
+        for (int i = 0; i < docTopics.length; i++) {
+          if (row[docTopics[i]] != 0)
+            topics[n++] = docTopics[i];
+        }
+      }
+      return n;
+    }
+  }
+
+  public int getM() {
+    return M;
+  }
+
+  public int getK() {
+    return K;
+  }
+}
@@ -66,6 +66,14 @@ public class Document {
     this.labels = tlabels != null ? tlabels.toArray() : null;
   }
 
+  public Document(int[] words, int[] cfs, int[] labels)
+  {
+    this.length = words.length;
+    this.words = words;
+    this.cfs = cfs;
+    this.labels = labels;
+  }
+
   public int[] getWords() {
     return words;
   }
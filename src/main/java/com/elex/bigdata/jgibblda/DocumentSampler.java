@@ -0,0 +1,271 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Infers theta of a single document against the resident trained model, for Inferencer.infer:
+ * the document is sampled on its own as with -infseparately, where it only depends on the
+ * read-only trained counts and its own counts, and theta is averaged over the same samples as
+ * an inference run takes. Words are looked up in the trained dictionary and counted by global
+ * id, so no Model, LDADataset or local dictionary is built; the urls LDADataset eliminates are
+ * skipped as when the document is read from a data file. The counts and assignments live
+ * in scratch arrays that grow to the largest document seen; once warm a call allocates
+ * nothing. Not thread-safe, Inferencer keeps one instance per thread.
+ */
+public class DocumentSampler {
+  private Model trnModel;
+  private LDACmdOption option;
+  private Dictionary dict;  // trained dictionary
+  private Set<String> eliminatedUrls; // shared with LDADataset
+  private LDADataset trnData;
+  private CountMatrix trnNw;
+  private int[] trnNwsum;
+  private int K;
+  private double alpha;
+  private double beta;
+  private double Vbeta;
+  private int niters;
+  private int nburnin;
+  private int samplingLag;
+  private boolean unlabeled;
+  private long seed;
+  private FastRandom random;
+
+  // scratch of the current document
+  private int length = 0;      // number of tokens
+  private int[] words = new int[64]; // words[n]: global id of token n
+  private int[] cfs = new int[64];
+  private int[] slots = new int[64]; // slots[n]: distinct word of token n
+  private int[] z = new int[64];
+  private int[] nw = new int[0];     // nw[slot * K + k]: count of the document's word slot in topic k
+  private TIntIntHashMap slotOf = new TIntIntHashMap(64, 0.5f, -1, -1); // global id -> slot, -1 if none
+  private int[] firstToken = new int[64]; // firstToken[slot]: first token of the word slot
+  private int[] nd;
+  private int[] nwsum;
+  private int[] topics;        // topics the document may be assigned to
+  private int numTopics;
+  private boolean[] labelled;  // scratch of the label union
+  private double[] p;
+
+  public DocumentSampler(Model trnModel, LDACmdOption option, long seed) {
+    this.trnModel = trnModel;
+    this.option = option;
+    dict = trnModel.getData().getLocalDict();
+    trnData = trnModel.getData();
+    eliminatedUrls = trnData.getEliminatedUrls();
+    trnNw = trnModel.getNw();
+    trnNwsum = trnModel.getNwsum();
+    K = trnModel.getK();
+    // as Model(option, trnModel): the trained hyperparameters unless overridden
+    alpha = option.alpha >= 0 ? option.alpha : trnModel.getAlpha();
+    beta = option.beta >= 0 ? option.beta : trnModel.getBeta();
+    Vbeta = trnModel.getV() * beta;
+    niters = option.niters;
+    nburnin = option.nburnin;
+    samplingLag = option.samplingLag;
+    unlabeled = option.unlabeled;
+    this.seed = seed;
+    random = new FastRandom(seed);
+
+    nd = new int[K];
+    nwsum = new int[K];
+    topics = new int[K];
+    labelled = new boolean[K];
+    p = new double[K];
+  }
+
+  /**
+   * whether this samples with the given model, options and seed
+   */
+  public boolean samples(Model trnModel, LDACmdOption option, long seed) {
+    return this.trnModel == trnModel && this.option == option && this.seed == seed;
+  }
+
+  /**
+   * theta of the document into theta (size K), see Inferencer.infer
+   */
+  public void infer(String uid, String[] urls, int[] counts, int[] labels, double[] theta) {
+    if (urls.length != counts.length) {
+      throw new IllegalArgumentException("urls and counts differ in length");
+    }
+    setDocument(uid, urls, counts, labels);
+
+    // a document draws from its own stream, the result only depends on the seed and its uid
+    random.reseed(seed, uid == null ? 0 : uid.hashCode());
+
+    Arrays.fill(nd, 0);
+    Arrays.fill(nwsum, 0);
+    Arrays.fill(nw, 0, slotOf.size() * K, 0);
+    int ndsum = 0;
+    for (int n = 0; n < length; n++) {
+      int topic = topics[random.nextInt(numTopics)];
+      z[n] = topic;
+      nd[topic] += cfs[n];
+      nw[slots[n] * K + topic] += cfs[n];
+      nwsum[topic] += cfs[n];
+      ndsum += cfs[n];
+    }
+
+    Arrays.fill(theta, 0, K, 0);
+    int numSamples = 0;
+    double Kalpha = K * alpha;
+    for (int liter = 1; liter <= niters; liter++) {
+      for (int n = 0; n < length; n++) {
+        sample(n);
+      }
+      if (liter == niters || (liter > nburnin && liter % samplingLag == 0)) {
+        for (int k = 0; k < K; k++) {
+          theta[k] += (nd[k] + alpha) / (ndsum + Kalpha);
+        }
+        numSamples++;
+      }
+    }
+    for (int k = 0; k < K; k++) {
+      theta[k] = numSamples > 0 ? theta[k] / numSamples : (nd[k] + alpha) / (ndsum + Kalpha);
+    }
+  }
+
+  // draw a new topic for token n
+  private void sample(int n) {
+    int topic = z[n];
+    int cf = cfs[n];
+    int nwOff = slots[n] * K;
+    nd[topic] -= cf;
+    nw[nwOff + topic] -= cf;
+    nwsum[topic] -= cf;
+
+    int[] trnNwPage = trnNw.page(words[n]);
+    int trnNwOff = trnNw.offset(words[n]);
+    double sum = 0;
+    for (int i = 0; i < numTopics; i++) {
+      int k = topics[i];
+      sum += (nd[k] + alpha) * (trnNwPage[trnNwOff + k] + nw[nwOff + k] + beta) / (trnNwsum[k] + nwsum[k] + Vbeta);
+      p[i] = sum;
+    }
+    double u = random.nextDouble() * sum;
+    int i;
+    for (i = 0; i < numTopics - 1; i++) {
+      if (p[i] > u)
+        break;
+    }
+    topic = topics[i];
+
+    z[n] = topic;
+    nd[topic] += cf;
+    nw[nwOff + topic] += cf;
+    nwsum[topic] += cf;
+  }
+
+  // the tokens and topics of the document, merged with the trained document of uid as
+  // LDADataset.mergeDocument does
+  private void setDocument(String uid, String[] urls, int[] counts, int[] labels) {
+    length = 0;
+    slotOf.clear();
+    for (int i = 0; i < urls.length; i++) {
+      if (eliminatedUrls.contains(urls[i]))
+        continue;
+      int w = dict.getID(urls[i]);
+      if (w >= 0)
+        addToken(w, counts[i]);
+    }
+
+    Document trainedDoc = null;
+    if (uid != null) {
+      Integer trainedDocNum = trnData.getDocNum(uid);
+      if (trainedDocNum != null && trainedDocNum < trnData.getDocs().size())
+        trainedDoc = trnData.getDocs().get(trainedDocNum);
+    }
+    if (trainedDoc != null) {
+      // the trained words' counts add to the document's
+      int[] trainedWords = trainedDoc.getWords();
+      int[] trainedCfs = trainedDoc.getCfs();
+      for (int i = 0; i < trainedDoc.getLength(); i++) {
+        int slot = slotOf.get(trainedWords[i]);
+        if (slot >= 0) {
+          cfs[firstToken[slot]] += trainedCfs[i];
+        } else {
+          addToken(trainedWords[i], trainedCfs[i]);
+        }
+      }
+    }
+
+    numTopics = 0;
+    if (!unlabeled) {
+      markLabels(labels);
+      if (trainedDoc != null)
+        markLabels(trainedDoc.getLabels());
+      for (int k = 0; k < K; k++) {
+        if (labelled[k]) {
+          topics[numTopics++] = k;
+          labelled[k] = false;
+        }
+      }
+    }
+    if (numTopics == 0) {
+      for (int k = 0; k < K; k++) {
+        topics[k] = k;
+      }
+      numTopics = K;
+    }
+  }
+
+  /**
+   * number of tokens of the last document
+   */
+  int getLength() {
+    return length;
+  }
+
+  /**
+   * global ids of the tokens of the last document, see getLength
+   */
+  int[] getWords() {
+    return words;
+  }
+
+  /**
+   * cfs of the tokens of the last document, see getLength
+   */
+  int[] getCfs() {
+    return cfs;
+  }
+
+  private void markLabels(int[] labels) {
+    if (labels == null)
+      return;
+    for (int label : labels) {
+      if (label < 0 || label >= K) {
+        throw new IllegalArgumentException("Label " + label + " is not a topic of the model");
+      }
+    }
+    for (int label : labels) {
+      labelled[label] = true;
+    }
+  }
+
+  private void addToken(int w, int cf) {
+    if (length == words.length) {
+      int capacity = 2 * length;
+      words = Arrays.copyOf(words, capacity);
+      cfs = Arrays.copyOf(cfs, capacity);
+      slots = Arrays.copyOf(slots, capacity);
+      z = Arrays.copyOf(z, capacity);
+    }
+    int slot = slotOf.get(w);
+    if (slot < 0) {
+      slot = slotOf.size();
+      slotOf.put(w, slot);
+      if (slot == firstToken.length)
+        firstToken = Arrays.copyOf(firstToken, 2 * slot);
+      firstToken[slot] = length;
+      if (nw.length < (slot + 1) * K)
+        nw = Arrays.copyOf(nw, Math.max((slot + 1) * K, 2 * nw.length));
+    }
+    words[length] = w;
+    cfs[length] = cf;
+    slots[length++] = slot;
+  }
+}
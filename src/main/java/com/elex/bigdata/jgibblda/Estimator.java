@@ -28,6 +28,7 @@
 
 package com.elex.bigdata.jgibblda;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -36,6 +37,10 @@ public class Estimator
   // output model
   private Model trnModel;
   private LDACmdOption option;
+  private Sampler sampler = null; // serial sampler, not built when the workers of ParallelSampler sample
+  private FastRandom random;      // random stream 1, of the serial sampler
+  private Checkpoint resumed = null; // checkpoint the estimation resumes from
+  private long fingerprint;          // Checkpoint.fingerprint of the training data
 
   public Estimator(LDACmdOption option) throws FileNotFoundException, IOException
   {
@@ -49,37 +54,149 @@ public class Estimator
     else if (option.estc){
       trnModel.init(false,true);
     }
+
+    if (option.resume || option.checkpoint > 0) {
+      fingerprint = Checkpoint.fingerprint(trnModel.getData(), trnModel.getM());
+    }
+    if (option.resume) {
+      String filename = checkpointFile();
+      resumed = Checkpoint.read(filename);
+      resumed.restore(trnModel, fingerprint);
+      trnModel.setSeed(resumed.getSeed());
+      System.out.println("Resuming from checkpoint " + filename + " after iteration " + resumed.getLiter());
+    }
+
+    random = trnModel.newRandom(1);
+    if (resumed != null && resumed.getState(1) != null) {
+      random.setState(resumed.getState(1));
+    }
+  }
+
+  Model getModel() {
+    return trnModel;
+  }
+
+  private String checkpointFile() {
+    return option.dir + File.separator + option.modelName + Model.getCheckpointSuffix();
   }
 
   public void estimate()
   {
+    ParallelSampler parallelSampler = null;
+    if (option.nthreads > 1 && trnModel.getM() > 1) {
+      parallelSampler = new ParallelSampler(this, trnModel, option.nthreads);
+      System.out.println("Sampling with " + parallelSampler.getNumWorkers() + " threads");
+      if (resumed != null) {
+        for (int i = 0; i < parallelSampler.getNumWorkers(); i++) {
+          if (resumed.getState(2 + i) != null)
+            parallelSampler.getRandom(i).setState(resumed.getState(2 + i));
+        }
+        if (resumed.getNumStreams() != 1 + parallelSampler.getNumWorkers()) {
+          System.out.println("The checkpoint was taken with a different number of threads, the run is not reproducible");
+        }
+      }
+    } else {
+      if (resumed != null && resumed.getNumStreams() != 1) {
+        System.out.println("The checkpoint was taken with a different number of threads, the run is not reproducible");
+      }
+      sampler = newSampler(trnModel.getNw(), trnModel.getNwsum(), random);
+    }
+
+    Checkpoint.Writer checkpoints = null;
+    if (option.checkpoint > 0) {
+      checkpoints = new Checkpoint.Writer(checkpointFile());
+    }
+
+    ConvergenceMonitor monitor = null;
+    if (ConvergenceMonitor.isEnabled(option)) {
+      monitor = new ConvergenceMonitor(option, trnModel.getNburnin());
+    }
+
+    System.out.println("Random seed: " + trnModel.getSeed());
     System.out.println("Sampling " + trnModel.getNiters() + " iterations!");
     System.out.print("Iteration");
-    int liter =trnModel.getLiter();
-    for (int startIter = ++liter; liter <= startIter - 1 + trnModel.getNiters(); liter++){
+    int startIter, liter;
+    if (resumed != null) {
+      startIter = resumed.getStartIter();
+      liter = resumed.getLiter() + 1;
+    } else {
+      startIter = trnModel.getLiter() + 1;
+      liter = startIter;
+    }
+    for (; liter <= startIter - 1 + trnModel.getNiters(); liter++){
       System.out.format("%6d", liter);
 
-      // for all z_i
-      for (int m = 0; m < trnModel.getM(); m++){
-        for (int n = 0; n < trnModel.getData().getDocs().get(m).getLength(); n++){
-          // z_i = z[m][n]
-          // sample from p(z_i|z_-i, w)
-          int topic = sampling(m, n);
-          trnModel.getZ()[m].set(n, topic);
-        }// end for each word
-      }// end for each document
-
-      if ((liter == startIter - 1 + trnModel.getNiters()) ||
+      long changed = 0;
+      if (parallelSampler != null) {
+        // AD-LDA: sample document partitions concurrently and merge counts
+        changed = parallelSampler.sweep();
+      } else {
+        sampler.prepare();
+        // for all z_i
+        for (int m = 0; m < trnModel.getM(); m++){
+          for (int n = 0; n < trnModel.getData().getDocs().get(m).getLength(); n++){
+            // z_i = z[m][n]
+            // sample from p(z_i|z_-i, w)
+            int topic = sampling(m, n);
+            if (topic != trnModel.getZ().get(m, n))
+              changed++;
+            trnModel.getZ().set(m, n, topic);
+          }// end for each word
+        }// end for each document
+        sampler.finish();
+      }
+
+      boolean converged = monitor != null && monitor.isCheck(liter) &&
+        monitor.check(liter, ConvergenceMonitor.logLikelihood(trnModel),
+          (double) changed / Math.max(1, trnModel.getZ().getNumTokens()));
+
+      if ((liter == startIter - 1 + trnModel.getNiters()) || converged ||
         (liter > trnModel.getNburnin() && liter % trnModel.getSamplingLag() == 0)) {
         trnModel.updateParams();
       }
 
       System.out.print("\b\b\b\b\b\b");
+      if (converged) {
+        System.out.println("\nConverged at iteration " + liter);
+        trnModel.setConvergedIter(liter);
+        liter++;
+        break;
+      }
+
+      if (checkpoints != null && liter % option.checkpoint == 0 && liter < startIter - 1 + trnModel.getNiters()) {
+        checkpoints.write(snapshot(parallelSampler, startIter, liter));
+      }
     }// end iterations
     trnModel.setLiter(liter-1);
 
+    if (parallelSampler != null) {
+      parallelSampler.shutdown();
+    }
+
     System.out.println("\nSaving the final model!");
-    trnModel.saveModel();
+    boolean saved = trnModel.saveModel();
+
+    if (checkpoints != null) {
+      // keep the last checkpoint if the model could not be saved
+      checkpoints.close(saved);
+    } else if (saved && resumed != null) {
+      new File(checkpointFile()).delete();
+    }
+  }
+
+  // checkpoint of the state after iteration liter
+  private Checkpoint snapshot(ParallelSampler parallelSampler, int startIter, int liter)
+  {
+    int numWorkers = parallelSampler != null ? parallelSampler.getNumWorkers() : 0;
+    int[] streams = new int[1 + numWorkers];
+    FastRandom[] randoms = new FastRandom[1 + numWorkers];
+    streams[0] = 1;
+    randoms[0] = random;
+    for (int i = 0; i < numWorkers; i++) {
+      streams[1 + i] = 2 + i;
+      randoms[1 + i] = parallelSampler.getRandom(i);
+    }
+    return Checkpoint.snapshot(trnModel, fingerprint, startIter, liter, streams, randoms);
   }
 
   /**
@@ -90,58 +207,14 @@ public class Estimator
    */
   public int sampling(int m, int n)
   {
-    // remove z_i from the count variable
-    int topic = trnModel.getZ()[m].get(n);
-    int w = trnModel.getData().getDocs().get(m).getWords()[n];
-    int cf=trnModel.getData().getDocs().get(m).getCfs()[n];
-
-    trnModel.getNw()[w][topic] -= cf;
-    trnModel.getNd()[m][topic] -= cf;
-    trnModel.getNwsum()[topic] -= cf;
-    trnModel.getNdsum()[m] -= cf;
-
-    double Vbeta = trnModel.getV() * trnModel.getBeta();
-
-    // get labels for this document
-    int[] labels = trnModel.getData().getDocs().get(m).getLabels();
-
-    // determine number of possible topics for this document
-    int K_m = (labels == null || labels.length==0) ? trnModel.getK() : labels.length;
-
-    // do multinominal sampling via cumulative method
-    double[] p = trnModel.getP();
-    for (int k = 0; k < K_m; k++) {
-      topic = (labels == null || labels.length==0) ? k : labels[k];
-
-      p[k] = (trnModel.getNd()[m][topic] + trnModel.getAlpha()) *
-        (trnModel.getNw()[w][topic] + trnModel.getBeta()) /
-        (trnModel.getNwsum()[topic] + Vbeta);
-    }
-
-    // cumulate multinomial parameters
-    for (int k = 1; k < K_m; k++) {
-      p[k] += p[k - 1];
-    }
-
-    // scaled sample because of unnormalized p[]
-    double u = Math.random() * p[K_m - 1];
-
-    for (topic = 0; topic < K_m; topic++){
-      if (p[topic] > u) //sample topic w.r.t distribution p
-        break;
-    }
-
-    // map [0, K_m - 1] topic to [0, K - 1] topic according to labels
-    if (labels != null && labels.length!=0) {
-      topic = labels[topic];
-    }
-
-    // add newly estimated z_i to count variables
-    trnModel.getNw()[w][topic] += cf;
-    trnModel.getNd()[m][topic] += cf;
-    trnModel.getNwsum()[topic] += cf;
-    trnModel.getNdsum()[m] += cf;
+    return sampler.sample(m, n);
+  }
 
-    return topic;
+  /**
+   * create a sampler of the configured kind over the given word-topic counts
+   */
+  protected Sampler newSampler(CountMatrix nw, int[] nwsum, FastRandom random)
+  {
+    return Sampler.create(option, trnModel, nw, nwsum, random);
   }
 }
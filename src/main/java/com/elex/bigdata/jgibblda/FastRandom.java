@@ -0,0 +1,83 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * xoroshiro128+ pseudo random generator (Blackman and Vigna). Not thread-safe: every sampling
+ * thread owns its own instance, so there is no shared seed to contend on as with Math.random().
+ * Instances are derived from a run seed and a stream number, which makes runs reproducible.
+ */
+public class FastRandom {
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private long s0;
+  private long s1;
+
+  public FastRandom(long seed) {
+    this(seed, 0);
+  }
+
+  /**
+   * generator for stream number stream of the given seed, different streams are independent
+   */
+  public FastRandom(long seed, int stream) {
+    reseed(seed, stream);
+  }
+
+  /**
+   * restart this generator as stream number stream of the given seed: the state is the next
+   * two outputs of a splitmix64 sequence started at mix(seed ^ mix(stream)), so the states of
+   * different streams are unrelated rather than overlapping
+   */
+  public void reseed(long seed, int stream) {
+    long x = mix(seed ^ mix(stream));
+    s0 = mix(x += GOLDEN_GAMMA);
+    s1 = mix(x + GOLDEN_GAMMA);
+    if (s0 == 0 && s1 == 0)
+      s1 = GOLDEN_GAMMA;
+  }
+
+  /**
+   * the generator state, for checkpoints
+   */
+  public long[] getState() {
+    return new long[] {s0, s1};
+  }
+
+  /**
+   * continue from a state returned by getState()
+   */
+  public void setState(long[] state) {
+    s0 = state[0];
+    s1 = state[1];
+  }
+
+  // splitmix64 finalizer
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  public long nextLong() {
+    long a = s0;
+    long b = s1;
+    long result = a + b;
+    b ^= a;
+    s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+    s1 = Long.rotateLeft(b, 37);
+    return result;
+  }
+
+  /**
+   * uniform in [0, 1)
+   */
+  public double nextDouble() {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * uniform in [0, bound)
+   */
+  public int nextInt(int bound) {
+    return (int) (((nextLong() >>> 32) * bound) >>> 32);
+  }
+}
@@ -0,0 +1,119 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * The standard collapsed Gibbs sampler for inference, computing p(z_i = k) for every topic.
+ * Labelled documents are sampled over their label group by LabelKernel.
+ */
+public class GibbsInfSampler extends InfSampler {
+  private LabelKernel labelKernel;
+  private int K;
+  private double alpha;
+  private double beta;
+  private double Vbeta;
+
+  // temp variables for sampling
+  private double[] p;
+
+  public GibbsInfSampler(Model newModel, TrainedCounts trained, boolean separately, FastRandom random) {
+    super(newModel, trained, separately, random);
+    K = newModel.getK();
+    alpha = newModel.getAlpha();
+    beta = newModel.getBeta();
+    Vbeta = trained.getVbeta();
+    labelKernel = new LabelKernel(newModel.getLabelGroups(), K, alpha, beta);
+    p = new double[K];
+  }
+
+  public void prepare() {
+    if (!separately) {
+      for (int k = 0; k < K; k++) {
+        setLabelDenominator(k);
+      }
+    }
+  }
+
+  public int sample(int m, int n) {
+    // remove z_i from the count variables
+    int topic = newModel.getZ().get(m, n);
+    int _w = newModel.getData().getDocs().get(m).getWords()[n];
+    int cf = newModel.getData().getDocs().get(m).getCfs()[n];
+
+    ndRow.open(m);
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+    int[] trnNwPage = trained.getNw().page(_w);
+    int trnNwOff = trained.getNw().offset(_w);
+    int[] trnNwsum = trained.getNwsum();
+
+    // the new word counts, (array, offset) of either nw_inf[m][_w] or newModel.nw
+    int[] nwPage;
+    int nwOff;
+    int[] nwsum;
+    if (separately) {
+      nwPage = newModel.getNw_inf().get(m).get(_w);
+      nwOff = 0;
+      nwsum = newModel.getNwsum_inf()[m];
+    } else {
+      nwPage = newModel.getNw().page(_w);
+      nwOff = newModel.getNw().offset(_w);
+      nwsum = newModel.getNwsum();
+    }
+
+    nwPage[nwOff + topic] -= cf;
+    nwsum[topic] -= cf;
+    ndPage[ndOff + topic] -= cf;
+    newModel.getNdsum()[m] -= cf;
+    if (!separately) {
+      setLabelDenominator(topic);
+    }
+
+    int group = newModel.getLabelGroups().getGroup(m);
+    if (group >= 0) {
+      // labelled document: only the topics of its label set
+      if (separately) {
+        topic = labelKernel.sample(group, ndPage, ndOff, trnNwPage, trnNwOff, nwPage, nwOff,
+          trnNwsum, nwsum, Vbeta, random.nextDouble());
+      } else {
+        topic = labelKernel.sample(group, ndPage, ndOff, trnNwPage, trnNwOff, nwPage, nwOff, random.nextDouble());
+      }
+    } else {
+      // do multinomial sampling via cumulative method
+      for (int k = 0; k < K; k++) {
+        p[k] = (ndPage[ndOff + k] + alpha) *
+          (trnNwPage[trnNwOff + k] + nwPage[nwOff + k] + beta) /
+          (trnNwsum[k] + nwsum[k] + Vbeta);
+      }
+
+      // cumulate multinomial parameters
+      for (int k = 1; k < K; k++){
+        p[k] += p[k - 1];
+      }
+
+      // scaled sample because of unnormalized p[]
+      double u = random.nextDouble() * p[K - 1];
+
+      for (topic = 0; topic < K - 1; topic++){
+        if (p[topic] > u)
+          break;
+      }
+    }
+
+    // add newly estimated z_i to count variables
+    nwPage[nwOff + topic] += cf;
+    nwsum[topic] += cf;
+    ndPage[ndOff + topic] += cf;
+    newModel.getNdsum()[m] += cf;
+    if (!separately) {
+      setLabelDenominator(topic);
+    }
+
+    return topic;
+  }
+
+  /**
+   * refresh the cached denominator of topic k in labelKernel (shared counts only)
+   */
+  private void setLabelDenominator(int k) {
+    labelKernel.setDenominator(k, trained.getNwsum()[k] + newModel.getNwsum()[k] + Vbeta);
+  }
+}
@@ -0,0 +1,83 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * The standard collapsed Gibbs sampler, computing p(z_i = k) for every possible topic.
+ * Labelled documents are sampled over their label group by LabelKernel.
+ */
+public class GibbsSampler extends Sampler {
+  private LabelKernel labelKernel;
+  private double Vbeta;
+
+  // temp variables for sampling
+  private double[] p;
+
+  public GibbsSampler(Model model, CountMatrix nw, int[] nwsum, FastRandom random) {
+    super(model, nw, nwsum, random);
+    Vbeta = model.getV() * model.getBeta();
+    labelKernel = new LabelKernel(model.getLabelGroups(), model.getK(), model.getAlpha(), model.getBeta());
+    p = new double[model.getK()];
+  }
+
+  public void prepare() {
+    for (int k = 0; k < model.getK(); k++) {
+      labelKernel.setDenominator(k, nwsum[k] + Vbeta);
+    }
+  }
+
+  public int sample(int m, int n)
+  {
+    // remove z_i from the count variable
+    int topic = model.getZ().get(m, n);
+    int w = model.getData().getDocs().get(m).getWords()[n];
+    int cf = model.getData().getDocs().get(m).getCfs()[n];
+
+    int[] nwPage = nw.page(w);
+    int nwOff = nw.offset(w);
+    ndRow.open(m);
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+
+    nwPage[nwOff + topic] -= cf;
+    ndPage[ndOff + topic] -= cf;
+    nwsum[topic] -= cf;
+    model.getNdsum()[m] -= cf;
+    labelKernel.setDenominator(topic, nwsum[topic] + Vbeta);
+
+    int group = model.getLabelGroups().getGroup(m);
+    if (group >= 0) {
+      // labelled document: only the topics of its label set
+      topic = labelKernel.sample(group, ndPage, ndOff, nwPage, nwOff, random.nextDouble());
+    } else {
+      int K = model.getK();
+
+      // do multinominal sampling via cumulative method
+      for (int k = 0; k < K; k++) {
+        p[k] = (ndPage[ndOff + k] + model.getAlpha()) *
+          (nwPage[nwOff + k] + model.getBeta()) /
+          (nwsum[k] + Vbeta);
+      }
+
+      // cumulate multinomial parameters
+      for (int k = 1; k < K; k++) {
+        p[k] += p[k - 1];
+      }
+
+      // scaled sample because of unnormalized p[]
+      double u = random.nextDouble() * p[K - 1];
+
+      for (topic = 0; topic < K - 1; topic++){
+        if (p[topic] > u) //sample topic w.r.t distribution p
+          break;
+      }
+    }
+
+    // add newly estimated z_i to count variables
+    nwPage[nwOff + topic] += cf;
+    ndPage[ndOff + topic] += cf;
+    nwsum[topic] += cf;
+    model.getNdsum()[m] += cf;
+    labelKernel.setDenominator(topic, nwsum[topic] + Vbeta);
+
+    return topic;
+  }
+}
@@ -0,0 +1,165 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzipped UTF-8 text file of the model. Text and numbers are formatted straight into
+ * a reusable byte buffer, so writing a token costs no String. Doubles are written as
+ * Double.toString writes them. The compression level is one of NONE (stored deflate blocks,
+ * still a valid gzip file for the readers), FAST and DEFAULT.
+ */
+public class GzipTextOutput implements Closeable {
+  public static final String NONE = "none";
+  public static final String FAST = "fast";
+  public static final String DEFAULT = "default";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private OutputStream out;
+  private byte[] buf = new byte[BUFFER_SIZE];
+  private int pos = 0;
+  private char[] digits = new char[32];
+  private StringBuilder number = new StringBuilder(32); // for doubles
+
+  // a GZIPOutputStream with a given deflate level
+  private static class LevelGZIPOutputStream extends GZIPOutputStream {
+    LevelGZIPOutputStream(OutputStream out, int size, int level) throws IOException {
+      super(out, size);
+      def.setLevel(level);
+    }
+  }
+
+  /**
+   * deflate level of a -compression value
+   */
+  public static int level(String compression) {
+    if (NONE.equalsIgnoreCase(compression)) {
+      return Deflater.NO_COMPRESSION;
+    } else if (FAST.equalsIgnoreCase(compression)) {
+      return Deflater.BEST_SPEED;
+    } else if (DEFAULT.equalsIgnoreCase(compression)) {
+      return Deflater.DEFAULT_COMPRESSION;
+    }
+    throw new IllegalArgumentException("Unknown compression: " + compression);
+  }
+
+  public GzipTextOutput(String filename, int level) throws IOException {
+    out = new LevelGZIPOutputStream(new FileOutputStream(filename), BUFFER_SIZE, level);
+  }
+
+  public GzipTextOutput write(char c) throws IOException {
+    if (c < 0x80) {
+      if (pos == buf.length)
+        flush();
+      buf[pos++] = (byte) c;
+    } else {
+      write(String.valueOf(c));
+    }
+    return this;
+  }
+
+  /**
+   * write s, "null" for null as string concatenation does
+   */
+  public GzipTextOutput write(String s) throws IOException {
+    if (s == null)
+      s = "null";
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      if (buf.length - pos < 4)
+        flush();
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, replaced as OutputStreamWriter does
+        buf[pos++] = (byte) '?';
+      } else {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return this;
+  }
+
+  /**
+   * write bytes that are UTF-8 text already
+   */
+  public GzipTextOutput write(byte[] bytes, int off, int len) throws IOException {
+    if (buf.length - pos < len) {
+      flush();
+      if (len > buf.length) {
+        out.write(bytes, off, len);
+        return this;
+      }
+    }
+    System.arraycopy(bytes, off, buf, pos, len);
+    pos += len;
+    return this;
+  }
+
+  public GzipTextOutput write(int value) throws IOException {
+    return write((long) value);
+  }
+
+  public GzipTextOutput write(long value) throws IOException {
+    if (buf.length - pos < 20)
+      flush();
+    if (value == Long.MIN_VALUE) {
+      return write(Long.toString(value));
+    }
+    if (value < 0) {
+      buf[pos++] = '-';
+      value = -value;
+    }
+    int n = 0;
+    do {
+      digits[n++] = (char) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    while (n > 0) {
+      buf[pos++] = (byte) digits[--n];
+    }
+    return this;
+  }
+
+  public GzipTextOutput write(double value) throws IOException {
+    number.setLength(0);
+    number.append(value);
+    int length = number.length();
+    if (buf.length - pos < length)
+      flush();
+    for (int i = 0; i < length; i++) {
+      buf[pos++] = (byte) number.charAt(i);
+    }
+    return this;
+  }
+
+  private void flush() throws IOException {
+    out.write(buf, 0, pos);
+    pos = 0;
+  }
+
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Sampling kernel used by Inferencer. A sampler draws z_i of a new document against the
+ * read-only trained counts (TrainedCounts) plus the counts of the new data, which are corpus-wide
+ * (newModel.nw/nwsum) or, with -infseparately, local to the document (nw_inf/nwsum_inf).
+ * In the latter case a sampler only writes to the counts of the document being sampled, so
+ * samplers with their own scratch buffers can work on different documents concurrently,
+ * see ParallelInferencer. newModel.nw/nwsum are then left alone and recounted from z
+ * before the parameters are updated.
+ */
+public abstract class InfSampler {
+  protected Model newModel;
+  protected TrainedCounts trained;
+  protected boolean separately;
+  protected FastRandom random;
+  protected DocTopicCounts.Cursor ndRow; // nd of the document being sampled
+
+  protected InfSampler(Model newModel, TrainedCounts trained, boolean separately, FastRandom random) {
+    this.newModel = newModel;
+    this.trained = trained;
+    this.separately = separately;
+    this.random = random;
+    ndRow = newModel.getNd().cursor();
+  }
+
+  /**
+   * create the sampler selected by -sampler, the alias sampler has no inference variant
+   */
+  public static InfSampler create(LDACmdOption option, Model newModel, TrainedCounts trained, FastRandom random) {
+    if (Sampler.SPARSE.equalsIgnoreCase(option.sampler)) {
+      return new SparseInfSampler(newModel, trained, option.infSeparately, random);
+    } else if (Sampler.GIBBS.equalsIgnoreCase(option.sampler) || Sampler.ALIAS.equalsIgnoreCase(option.sampler)) {
+      return new GibbsInfSampler(newModel, trained, option.infSeparately, random);
+    }
+    throw new IllegalArgumentException("Unknown sampler: " + option.sampler);
+  }
+
+  /**
+   * called before every sweep
+   */
+  public void prepare() {
+  }
+
+  /**
+   * called after every sweep, stores the counts of the last document sampled
+   */
+  public void finish() {
+    ndRow.close();
+  }
+
+  /**
+   * Do sampling
+   * @param m document number
+   * @param n word number
+   * @return topic id
+   */
+  public abstract int sample(int m, int n);
+
+  public FastRandom getRandom() {
+    return random;
+  }
+}
@@ -0,0 +1,141 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+/**
+ * -server: loads the trained model of -dir and -model once and keeps it, its counts and its
+ * dictionary resident while it runs the inference jobs sent to a socket on the loopback
+ * interface (-port), instead of every periodic inference loading the model in a new JVM.
+ *
+ * A job is one line of inference options, typically "-dfile docs.gz", parsed over the options
+ * the server was started with, so that "-dfile docs.gz -niters 50 -infseparately" runs as
+ * "-inf -dfile docs.gz -niters 50 -infseparately" would with the server's other options. The
+ * outputs are saved as an -inf run saves them, and the server answers with one line,
+ * "ok <output prefix>" once they are written or "error <message>". A connection may send
+ * several jobs; "shutdown" stops the server. Jobs run one at a time, each on its own -nthreads.
+ *
+ * The model is held by a ModelRegistry: with -reload the server picks up a model saved again
+ * in -dir, and "reload" loads it now, in the background in both cases. A job runs with the
+ * model that was in use when it started. With -thetacache the jobs share one cache, read from
+ * -thetacachefile when the server starts.
+ */
+public class InferenceServer {
+  public static final String SHUTDOWN = "shutdown";
+  public static final String RELOAD = "reload";
+
+  private String[] args;      // the server's command line, jobs are parsed over it
+  private LDACmdOption option;
+  private ModelRegistry models;
+  private ThetaCache thetaCache = null;
+  private boolean running = true;
+
+  public InferenceServer(String[] args, LDACmdOption option) throws IOException {
+    this.args = args;
+    this.option = option;
+    models = new ModelRegistry(option);
+    if (option.reload > 0)
+      models.watch(option.reload);
+    if (option.thetaCache > 0)
+      thetaCache = models.get().getThetaCache();
+  }
+
+  /**
+   * accept connections until a shutdown job
+   */
+  public void serve() throws IOException {
+    ServerSocket server = new ServerSocket(option.port, 50, InetAddress.getByName(null));
+    try {
+      System.out.println("Serving inference with model " + option.modelName + " on port " + server.getLocalPort());
+      while (running) {
+        Socket socket = server.accept();
+        try {
+          handle(socket);
+        } catch (IOException e) {
+          // the client went away, the server goes on
+          System.out.println("Error while serving connection: " + e.getMessage());
+        } finally {
+          socket.close();
+        }
+      }
+    } finally {
+      server.close();
+      models.close();
+    }
+  }
+
+  private void handle(Socket socket) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+    Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+    String line;
+    while (running && (line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty())
+        continue;
+      String reply;
+      if (SHUTDOWN.equals(line)) {
+        running = false;
+        reply = "ok";
+      } else if (RELOAD.equals(line)) {
+        models.reloadLater();
+        reply = "ok";
+      } else {
+        reply = runJob(line);
+      }
+      out.write(reply + "\n");
+      out.flush();
+    }
+  }
+
+  /**
+   * run the inference job of the options in line
+   * @return the reply
+   */
+  String runJob(String line) {
+    List<String> jobArgs = new ArrayList<String>(Arrays.asList(args));
+    jobArgs.addAll(Arrays.asList(line.split("\\s+")));
+    LDACmdOption jobOption = new LDACmdOption();
+    try {
+      new CmdLineParser(jobOption).parseArgument(jobArgs.toArray(new String[jobArgs.size()]));
+    } catch (CmdLineException e) {
+      return "error " + e.getMessage();
+    }
+    if (jobOption.dfile.isEmpty()) {
+      return "error no -dfile";
+    }
+    if (!jobOption.dir.equals(option.dir) || !jobOption.modelName.equals(option.modelName)
+      || jobOption.unlabeled != option.unlabeled) {
+      return "error the server holds model " + option.modelName + " of " + option.dir;
+    }
+
+    System.out.println("Inference job: " + line);
+    Model trnModel = models.get().getTrainedModel();
+    try {
+      Inferencer inferencer = new Inferencer(jobOption, trnModel);
+      if (thetaCache != null && jobOption.thetaCache > 0)
+        inferencer.setThetaCache(thetaCache);
+      inferencer.inference();
+      if (!inferencer.isSaved()) {
+        return "error failed to save the outputs";
+      }
+      return "ok " + trnModel.getDir() + File.separator + inferencer.getOutputPrefix() + jobOption.modelName;
+    } catch (Exception e) {
+      System.out.println("Error in inference job: " + e.getMessage());
+      e.printStackTrace();
+      return "error " + e.getMessage();
+    }
+  }
+}
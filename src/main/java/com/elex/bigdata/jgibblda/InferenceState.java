@@ -0,0 +1,208 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * State of an -incremental inference, kept next to its outputs (.state) for the next run on
+ * the same -dfile: for every document its uid, a fingerprint of its content, its theta row and
+ * its topic assignments. The next run samples only the documents that are new or whose
+ * content changed; a document whose uid and fingerprint match keeps its previous topic
+ * assignments, which still count towards the other documents, and its previous theta row.
+ *
+ * The fingerprint of a document is a hash of the multiset of its (global word id, cf) pairs
+ * and of its labels, so it does not depend on the local word ids or the order of the words
+ * of a run; the topics are stored in the order of the pairs sorted. The header holds a
+ * fingerprint of the trained counts and the hyperparameters: after the model is re-estimated
+ * every document is sampled again.
+ *
+ * File layout (DataOutputStream): magic, version, K (ints), model fingerprint (long), then
+ * for every document uid (UTF), fingerprint (long), length n (int), theta (double[K]),
+ * topics (int[n]).
+ */
+public class InferenceState {
+  public static final int MAGIC = 0x5349444c; // "LDIS"
+  public static final int VERSION = 1;
+
+  private InferenceState() {
+  }
+
+  /**
+   * Give the documents of newModel that are unchanged since the state in filename was
+   * written their previous topic assignments and theta, see Model.carryOver, and recount.
+   * @return number of documents carried over, 0 if there is no usable state
+   */
+  public static int carryOver(String filename, Model trnModel, Model newModel) throws IOException {
+    File file = new File(filename);
+    if (!file.exists())
+      return 0;
+
+    int K = newModel.getK();
+    LDADataset data = newModel.getData();
+    int carried = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        System.out.println("Ignoring inference state " + filename + ": unknown format");
+        return 0;
+      }
+      if (in.readInt() != K || in.readLong() != modelFingerprint(trnModel, newModel)) {
+        System.out.println("The model changed since the inference state " + filename + ", sampling all documents");
+        return 0;
+      }
+
+      while (true) {
+        String uid;
+        try {
+          uid = in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        long fingerprint = in.readLong();
+        int n = in.readInt();
+        Integer m = data.getDocNum(uid);
+        if (m == null || m >= newModel.getM() || newModel.isCarried(m)
+          || fingerprint != fingerprint(data, m)) {
+          skip(in, 8L * K + 4L * n);
+          continue;
+        }
+        double[] theta = new double[K];
+        for (int k = 0; k < K; k++) {
+          theta[k] = in.readDouble();
+        }
+        TopicAssignments z = newModel.getZ();
+        for (int i : sortedTokens(data, m)) {
+          int topic = in.readInt();
+          if (topic < 0 || topic >= K)
+            throw new IOException("Invalid topic in inference state: " + topic);
+          z.set(m, i, topic);
+        }
+        newModel.carryOver(m, theta);
+        carried++;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (carried > 0)
+      newModel.recount();
+    return carried;
+  }
+
+  private static void skip(DataInputStream in, long n) throws IOException {
+    while (n > 0) {
+      int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+      if (skipped <= 0)
+        throw new EOFException("Truncated inference state");
+      n -= skipped;
+    }
+  }
+
+  /**
+   * write the state of the inference of newModel to filename.tmp and rename it to filename
+   */
+  public static void write(String filename, Model trnModel, Model newModel) throws IOException {
+    int K = newModel.getK();
+    LDADataset data = newModel.getData();
+    TopicAssignments z = newModel.getZ();
+    File tmp = new File(filename + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(K);
+      out.writeLong(modelFingerprint(trnModel, newModel));
+      double[] theta = new double[K];
+      for (int m = 0; m < newModel.getM(); m++) {
+        String uid = data.getUid(m);
+        if (uid == null)
+          continue;
+        out.writeUTF(uid);
+        out.writeLong(fingerprint(data, m));
+        out.writeInt(data.getDocs().get(m).getLength());
+        newModel.thetaRow(m, theta);
+        for (int k = 0; k < K; k++) {
+          out.writeDouble(theta[k]);
+        }
+        for (int i : sortedTokens(data, m)) {
+          out.writeInt(z.get(m, i));
+        }
+      }
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), new File(filename).toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * fingerprint of the trained counts K, V, M, nwsum and of the hyperparameters of newModel
+   */
+  static long modelFingerprint(Model trnModel, Model newModel) {
+    long h = mix(trnModel.getK());
+    h = mix(h ^ trnModel.getV());
+    h = mix(h ^ trnModel.getM());
+    for (int count : trnModel.getNwsum()) {
+      h = mix(h ^ count);
+    }
+    h = mix(h ^ Double.doubleToLongBits(newModel.getAlpha()));
+    return mix(h ^ Double.doubleToLongBits(newModel.getBeta()));
+  }
+
+  /**
+   * order-independent fingerprint of the (global word id, cf) pairs and labels of document m
+   */
+  static long fingerprint(LDADataset data, int m) {
+    Document doc = data.getDocs().get(m);
+    TIntIntHashMap lid2gid = data.getLid2gid();
+    long sum = 0;
+    for (int n = 0; n < doc.getLength(); n++) {
+      sum += mix(((long) lid2gid.get(doc.getWords()[n]) << 32) | (doc.getCfs()[n] & 0xffffffffL));
+    }
+    long labels = 0;
+    if (doc.getLabels() != null) {
+      for (int label : doc.getLabels()) {
+        labels += mix(~(long) label);
+      }
+    }
+    return mix(mix(sum ^ doc.getLength()) ^ labels);
+  }
+
+  // the token positions of document m ordered by (global word id, cf)
+  static Integer[] sortedTokens(LDADataset data, int m) {
+    Document doc = data.getDocs().get(m);
+    TIntIntHashMap lid2gid = data.getLid2gid();
+    final long[] keys = new long[doc.getLength()];
+    Integer[] tokens = new Integer[doc.getLength()];
+    for (int n = 0; n < keys.length; n++) {
+      keys[n] = ((long) lid2gid.get(doc.getWords()[n]) << 32) | (doc.getCfs()[n] & 0xffffffffL);
+      tokens[n] = n;
+    }
+    Arrays.sort(tokens, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return keys[a] < keys[b] ? -1 : keys[a] > keys[b] ? 1 : 0;
+      }
+    });
+    return tokens;
+  }
+
+  // splitmix64 finalizer
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -28,8 +28,19 @@
 
 package com.elex.bigdata.jgibblda;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Inferencer
 {
@@ -39,18 +50,148 @@ public class Inferencer
   private LDACmdOption option;
 
   private Model newModel;
+  private TrainedCounts trained;
+  private InfSampler sampler;
+  private boolean saved = false; // whether the outputs of the last inference were saved
+  private ThetaCache thetaCache = null;
+
+  // single-document inference, see infer()
+  private long seed;
+  private ThreadPoolExecutor batchExecutor = null;
+
+  // scratch of infer() per thread, for the model, options and seed it was last used with: a
+  // thread does not keep the scratch, and the model, of every inferencer it served
+  private static final ThreadLocal<DocumentSampler> documentSamplers = new ThreadLocal<DocumentSampler>();
 
   //-----------------------------------------------------
   // Init method
   //-----------------------------------------------------
   public Inferencer(LDACmdOption option) throws FileNotFoundException, IOException
   {
-    this.option = option;
+    this(option, loadTrainedModel(option));
+  }
 
-    trnModel = new Model(option);
-    trnModel.init(false,false);
+  /**
+   * an inferencer with a trained model that is already loaded, which it does not change
+   */
+  public Inferencer(LDACmdOption option, Model trnModel)
+  {
+    this.option = option;
+    this.trnModel = trnModel;
 
     globalDict = trnModel.getData().getLocalDict();
+
+    seed = option.seed >= 0 ? option.seed : System.nanoTime() & Long.MAX_VALUE;
+  }
+
+  /**
+   * load the trained model -model of -dir and its counts, without reading -dfile
+   */
+  public static Model loadTrainedModel(LDACmdOption option) throws IOException
+  {
+    Model trnModel = new Model(option, null, false);
+    if (!trnModel.init(false,false))
+      throw new IOException("Failed to load model " + option.modelName + " from " + option.dir);
+    return trnModel;
+  }
+
+  /**
+   * Infer the topic distribution of one document in memory, with the trained model and
+   * per-thread scratch: no file is read or written and no Model is built. The document is
+   * sampled on its own as with -infseparately, after merging it with the trained document
+   * of the same uid as inference of a data file does, see DocumentSampler. Safe to call
+   * from several threads.
+   * @param uid uid of the document, may be null
+   * @param urls words of the document, those not in the trained dictionary and the eliminated urls are skipped
+   * @param counts count of every url
+   * @param labels labels of the document, may be null
+   * @return theta, size K
+   */
+  public double[] infer(String uid, String[] urls, int[] counts, int[] labels)
+  {
+    double[] theta = new double[trnModel.getK()];
+    infer(uid, urls, counts, labels, theta);
+    return theta;
+  }
+
+  /**
+   * infer(uid, urls, counts, labels) into theta, of size K
+   */
+  public void infer(String uid, String[] urls, int[] counts, int[] labels, double[] theta)
+  {
+    DocumentSampler sampler = documentSamplers.get();
+    if (sampler == null || !sampler.samples(trnModel, option, seed)) {
+      sampler = new DocumentSampler(trnModel, option, seed);
+      documentSamplers.set(sampler);
+    }
+    sampler.infer(uid, urls, counts, labels, theta);
+  }
+
+  /**
+   * infer a batch of documents, split over -nthreads threads
+   * @param labels labels of every document, may be null as may be its elements
+   * @return theta of every document
+   */
+  public double[][] infer(final String[] uids, final String[][] urls, final int[][] counts, final int[][] labels)
+  {
+    final double[][] thetas = new double[uids.length][trnModel.getK()];
+    int numWorkers = Math.max(1, Math.min(option.nthreads, uids.length));
+    List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < numWorkers; i++) {
+      final int from = (int) ((long) uids.length * i / numWorkers);
+      final int to = (int) ((long) uids.length * (i + 1) / numWorkers);
+      workers.add(new Callable<Void>() {
+        public Void call() {
+          for (int d = from; d < to; d++) {
+            infer(uids[d], urls[d], counts[d], labels == null ? null : labels[d], thetas[d]);
+          }
+          return null;
+        }
+      });
+    }
+
+    if (numWorkers == 1) {
+      try {
+        workers.get(0).call();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return thetas;
+    }
+
+    try {
+      for (Future<Void> result : batchExecutor().invokeAll(workers)) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while inferring documents", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error in inference thread", e.getCause());
+    }
+    return thetas;
+  }
+
+  // threads of batch inference, kept for the next batch while it comes within a minute
+  private synchronized ExecutorService batchExecutor()
+  {
+    if (batchExecutor == null) {
+      batchExecutor = new ThreadPoolExecutor(option.nthreads, option.nthreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "inference");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      batchExecutor.allowCoreThreadTimeOut(true);
+    }
+    return batchExecutor;
+  }
+
+  public Model getTrainedModel()
+  {
+    return trnModel;
   }
 
   //inference new model ~ getting data from a specified dataset
@@ -60,31 +201,86 @@ public class Inferencer
     //merge documents in trainedModel which has same uid with newModel
     newModel.getData().mergeTrainedDocuments(trnModel.getData(),false);
     newModel.init(true,false);
+    if (option.incremental) {
+      int carried = InferenceState.carryOver(getStateFile(), trnModel, newModel);
+      System.out.println("Carried over " + carried + " of " + newModel.getM() + " documents, unchanged since the last inference");
+    }
+    if (option.thetaCache > 0) {
+      if (option.infSeparately) {
+        int found = getThetaCache().carryOver(trnModel, newModel, option);
+        System.out.println("Found " + found + " of " + newModel.getM() + " documents in the theta cache");
+      } else {
+        System.out.println("The theta cache needs -infseparately, sampling all documents");
+      }
+    }
     newModel.initInf();
+    trained = new TrainedCounts(trnModel, newModel);
+    if (Sampler.ALIAS.equalsIgnoreCase(option.sampler)) {
+      System.out.println("The alias sampler is only used for estimation, inference uses gibbs");
+    }
+    sampler = newSampler(newModel.newRandom(1));
+
+    ParallelInferencer parallelInferencer = null;
+    if (option.nthreads > 1 && newModel.getM() > 1) {
+      if (option.infSeparately) {
+        parallelInferencer = new ParallelInferencer(this, newModel, option.nthreads);
+        System.out.println("Sampling with " + parallelInferencer.getNumWorkers() + " threads");
+      } else {
+        System.out.println("Multi-threaded inference needs -infseparately, sampling with 1 thread");
+      }
+    }
+
+    ConvergenceMonitor monitor = null;
+    if (ConvergenceMonitor.isEnabled(option)) {
+      monitor = new ConvergenceMonitor(option, newModel.getNburnin());
+    }
+
+    System.out.println("Random seed: " + newModel.getSeed());
     System.out.println("Sampling " + newModel.getNiters() + " iterations for inference!");
     System.out.print("Iteration");
     int liter=1;
     for (liter = 1; liter <= newModel.getNiters(); liter++){
       System.out.format("%6d", liter);
 
-      // for all newz_i
-      for (int m = 0; m < newModel.getM(); ++m){
-        for (int n = 0; n < newModel.getData().getDocs().get(m).getLength(); n++){
-          // sample from p(z_i|z_-1,w)
-          int topic = infSampling(m, n);
-          newModel.getZ()[m].set(n, topic);
-        }
-      }//end foreach new doc
+      long changed = 0;
+      if (parallelInferencer != null) {
+        changed = parallelInferencer.sweep(liter);
+      } else {
+        sampler.prepare();
+        // for all newz_i
+        for (int m = 0; m < newModel.getM(); ++m){
+          changed += sampleDocument(sampler, m, liter);
+        }//end foreach new doc
+        sampler.finish();
+      }
+
+      boolean converged = monitor != null && monitor.isCheck(liter) &&
+        monitor.check(liter, ConvergenceMonitor.logLikelihood(newModel, trained, option.infSeparately),
+          (double) changed / Math.max(1, newModel.getZ().getNumTokens()));
 
-      if ((liter == newModel.getNiters()) ||
+      if ((liter == newModel.getNiters()) || converged ||
         (liter > newModel.getNburnin() && liter % newModel.getSamplingLag() == 0)) {
+        if (option.infSeparately) {
+          // samplers only kept the per-document counts up to date
+          newModel.recountNw();
+        }
         newModel.updateParams(trnModel);
       }
 
       System.out.print("\b\b\b\b\b\b");
+      if (converged) {
+        System.out.println("\nConverged at iteration " + liter);
+        newModel.setConvergedIter(liter);
+        liter++;
+        break;
+      }
     }// end iterations
     newModel.setLiter(liter-1);
 
+    if (parallelInferencer != null) {
+      parallelInferencer.shutdown();
+    }
+
 //        System.out.println("\nSaving the inference outputs!");
 //        String outputPrefix = newModel.getDfile();
 //        if (outputPrefix.endsWith(".gz")) {
@@ -93,7 +289,15 @@ public class Inferencer
 //        newModel.saveModel(outputPrefix + ".");
     System.out.println("\nSaving the inference outputs!");
     double[][] result = newModel.getTheta();
-    newModel.saveModel(newModel.getDfile().replace('/','.')+"_inf_");
+    saved = newModel.saveModel(getOutputPrefix());
+    if (saved && option.incremental) {
+      InferenceState.write(getStateFile(), trnModel, newModel);
+    }
+    if (saved && option.thetaCache > 0 && option.infSeparately) {
+      thetaCache.addAll(trnModel, newModel, option);
+      if (!option.thetaCacheFile.isEmpty())
+        thetaCache.write(getThetaCacheFile());
+    }
       /*
     for(int i=0;i<newModel.getM();i++){
       System.out.print(newModel.getData().getUid(i)+"\t");
@@ -108,96 +312,90 @@ public class Inferencer
   }
 
   /**
-   * do sampling for inference
-   * m: document number
-   * n: word number?
+   * prefix of the output files of the inference in -dir, before the model name
    */
-  protected int infSampling(int m, int n)
+  public String getOutputPrefix()
   {
-    // remove z_i from the count variables
-    int topic = newModel.getZ()[m].get(n);
-    int _w = newModel.getData().getDocs().get(m).getWords()[n];
-    int cf = newModel.getData().getDocs().get(m).getCfs()[n];
-    int w = newModel.getData().getLid2gid().get(_w);
-
-    newModel.getNw()[_w][topic] -= cf;
-    newModel.getNd()[m][topic] -= cf;
-    newModel.getNwsum()[topic] -= cf;
-    newModel.getNdsum()[m] -= cf;
-
-    int[] nw_inf_m__w = null;
-    if (option.infSeparately) {
-      nw_inf_m__w = newModel.getNw_inf().get(m).get(_w);
-      nw_inf_m__w[topic] -= cf;
-      newModel.getNwsum_inf()[m][topic] -= cf;
-    }
-
-    double Vbeta = trnModel.getV() * newModel.getBeta();
-
-    // get labels for this document
-    int[] labels = newModel.getData().getDocs().get(m).getLabels();
-
-    // determine number of possible topics for this document
-    int K_m = (labels == null || labels.length==0) ? newModel.getK() : labels.length;
+    return option.dfile.replace('/','.')+"_inf_";
+  }
 
-    // do multinomial sampling via cumulative method
-    double[] p = newModel.getP();
-    for (int k = 0; k < K_m; k++) {
-      topic = (labels == null || labels.length==0) ? k : labels[k];
+  /**
+   * the -incremental state of the outputs, see InferenceState
+   */
+  public String getStateFile()
+  {
+    return trnModel.getDir() + File.separator + getOutputPrefix() + option.modelName + Model.getStateSuffix();
+  }
 
-      int nw_k, nwsum_k;
-      if (option.infSeparately) {
-        nw_k = nw_inf_m__w[topic];
-        nwsum_k = newModel.getNwsum_inf()[m][topic];
-      } else {
-        nw_k = newModel.getNw()[_w][topic];
-        nwsum_k = newModel.getNwsum()[topic];
-      }
+  public boolean isSaved()
+  {
+    return saved;
+  }
 
-      p[k] = (newModel.getNd()[m][topic] + newModel.getAlpha()) *
-        (trnModel.getNw()[w][topic] + nw_k + newModel.getBeta()) /
-        (trnModel.getNwsum()[topic] + nwsum_k + Vbeta);
-      /*
-      if(p[k]<0)
-        System.err.print("error");
-        */
+  /**
+   * the -thetacache, read from -thetacachefile when it was not set
+   */
+  public ThetaCache getThetaCache()
+  {
+    if (thetaCache == null) {
+      thetaCache = option.thetaCacheFile.isEmpty() ? new ThetaCache(trnModel.getK(), option.thetaCache)
+        : ThetaCache.load(getThetaCacheFile(), trnModel.getK(), option.thetaCache);
     }
+    return thetaCache;
+  }
 
-    // cumulate multinomial parameters
-    for (int k = 1; k < K_m; k++){
-      p[k] += p[k - 1];
-    }
+  /**
+   * use the given -thetacache, shared by the inferencers of a server
+   */
+  public void setThetaCache(ThetaCache thetaCache)
+  {
+    this.thetaCache = thetaCache;
+  }
 
-    // scaled sample because of unnormalized p[]
-    double u = Math.random() * p[K_m - 1];
+  public String getThetaCacheFile()
+  {
+    return trnModel.getDir() + File.separator + option.thetaCacheFile;
+  }
 
-    for (topic = 0; topic < K_m; topic++){
-      if (p[topic] > u)
-        break;
+  /**
+   * sample all words of document m with the given sampler
+   * @return number of words whose topic changed
+   */
+  int sampleDocument(InfSampler sampler, int m, int liter)
+  {
+    if (newModel.isCarried(m))
+      return 0;
+    if (option.infSeparately) {
+      // documents are independent, give each one its own random stream per iteration so
+      // the outcome does not depend on which thread samples it
+      sampler.getRandom().reseed(newModel.getSeed() + liter, m);
     }
-
-    // map [0, K_m - 1] topic to [0, K - 1] topic according to labels
-    if (labels != null && labels.length!=0) {
-      /*
-      if(topic>=labels.length)
-      {
-        System.err.print("error");
-      }
-      */
-      topic = labels[topic];
+    int changed = 0;
+    for (int n = 0; n < newModel.getData().getDocs().get(m).getLength(); n++){
+      // sample from p(z_i|z_-1,w)
+      int topic = sampler.sample(m, n);
+      if (topic != newModel.getZ().get(m, n))
+        changed++;
+      newModel.getZ().set(m, n, topic);
     }
+    return changed;
+  }
 
-    // add newly estimated z_i to count variables
-    newModel.getNw()[_w][topic] += cf;
-    newModel.getNd()[m][topic] += cf;
-    newModel.getNwsum()[topic] += cf;
-    newModel.getNdsum()[m] +=cf;
-
-    if (option.infSeparately) {
-      nw_inf_m__w[topic] += cf;
-      newModel.getNwsum_inf()[m][topic] += cf;
-    }
+  /**
+   * do sampling for inference
+   * m: document number
+   * n: word number?
+   */
+  protected int infSampling(int m, int n)
+  {
+    return sampler.sample(m, n);
+  }
 
-    return topic;
+  /**
+   * create a sampler of the configured kind for the new model
+   */
+  protected InfSampler newSampler(FastRandom random)
+  {
+    return InfSampler.create(option, newModel, trained, random);
   }
 }
@@ -47,7 +47,14 @@ public class LDA
 
       parser.parseArgument(args);
 
-      if (option.est || option.estc){
+      if (!option.convert.isEmpty()){
+        ModelConverter.convert(option);
+      }
+      else if (option.server){
+        InferenceServer server = new InferenceServer(args, option);
+        server.serve();
+      }
+      else if (option.est || option.estc){
         Estimator estimator = new Estimator(option);
         estimator.estimate();
       }
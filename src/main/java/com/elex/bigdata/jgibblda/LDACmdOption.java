@@ -13,12 +13,45 @@ public class LDACmdOption {
   @Option(name="-inf", usage="Specify whether we want to do inference")
   public boolean inf = true;
 
+  @Option(name="-incremental", usage="Only sample the documents that are new or changed since the last inference of the same -dfile, carrying over the others, see InferenceState")
+  public boolean incremental = false;
+
+  @Option(name="-server", usage="Keep the model given by -dir and -model loaded and run the inference jobs sent to -port, see InferenceServer")
+  public boolean server = false;
+
+  @Option(name="-port", usage="Specify the local port of -server")
+  public int port = 9527;
+
+  @Option(name="-reload", usage="Check every given number of seconds whether the model of -server was saved again and load it, see ModelRegistry (0: never)")
+  public int reload = 0;
+
   @Option(name="-infseparately", usage="Do inference for each document separately")
   public boolean infSeparately = false;
 
+  @Option(name="-thetacache", usage="With -infseparately, keep theta of up to the given number of document contents and reuse it for identical documents, see ThetaCache (0: no cache)")
+  public int thetaCache = 0;
+
+  @Option(name="-thetacachefile", usage="Specify the file in -dir that the -thetacache is kept in between runs (default: not kept)")
+  public String thetaCacheFile = "";
+
   @Option(name="-unlabeled", usage="Ignore document labels")
   public boolean unlabeled = false;
 
+  @Option(name="-binary", usage="Also save the model as a binary file (*.model.bin), which is loaded instead of the text files when present")
+  public boolean binary = false;
+
+  @Option(name="-wordmapindex", usage="Also save the word map as an uncompressed indexed file (*.wordmap.idx), which inference maps instead of reading the word map when present; with -convert the index is written too")
+  public boolean wordMapIndex = false;
+
+  @Option(name="-convert", usage="Convert the model given by -dir and -model to the binary file (binary) or back to the text files (text)")
+  public String convert = "";
+
+  @Option(name="-sparsetheta", usage="Accumulate theta per document over its non-zero topics instead of in an M x K matrix, and write it row by row")
+  public boolean sparseTheta = false;
+
+  @Option(name="-sparsend", usage="Keep the per-document topic counts sparse instead of in an M x K matrix, for short or labelled documents")
+  public boolean sparseNd = false;
+
   @Option(name="-dir", usage="Specify directory")
   public String dir = "";
 
@@ -48,4 +81,40 @@ public class LDACmdOption {
 
   @Option(name="-twords", usage="Specify the number of most likely words to be printed for each topic")
   public int twords = 100;
+
+  @Option(name="-nthreads", usage="Specify the number of threads used for reading the data file, saving the model, for estimation and for inference with -infseparately")
+  public int nthreads = 1;
+
+  @Option(name="-compression", usage="Specify the compression of the saved model files: none, fast or default")
+  public String compression = "default";
+
+  @Option(name="-sampler", usage="Specify the sampling kernel: gibbs, sparse or alias")
+  public String sampler = "gibbs";
+
+  @Option(name="-mhsteps", usage="Specify the number of Metropolis-Hastings steps per token for the alias sampler")
+  public int mhSteps = 2;
+
+  @Option(name="-aliasrefresh", usage="Specify the number of iterations between alias table rebuilds")
+  public int aliasRefresh = 4;
+
+  @Option(name="-convthreshold", usage="Stop sampling once the relative log-likelihood improvement stays below this value (0 runs all iterations)")
+  public double convThreshold = 0;
+
+  @Option(name="-convchangerate", usage="Stop sampling once the fraction of topic assignments changed per sweep stays below this value; with -convthreshold both must hold (0: not checked)")
+  public double convChangeRate = 0;
+
+  @Option(name="-convinterval", usage="Specify the number of iterations between convergence checks")
+  public int convInterval = 10;
+
+  @Option(name="-convpatience", usage="Specify the number of consecutive convergence checks below -convthreshold before stopping")
+  public int convPatience = 3;
+
+  @Option(name="-checkpoint", usage="Specify the number of iterations between estimation checkpoints (0 disables them)")
+  public int checkpoint = 0;
+
+  @Option(name="-resume", usage="Resume the estimation from the checkpoint of -model in -dir")
+  public boolean resume = false;
+
+  @Option(name="-seed", usage="Specify the random seed (runs with the same seed and number of threads are reproducible)")
+  public long seed = -1;
 }
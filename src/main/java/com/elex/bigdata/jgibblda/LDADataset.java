@@ -55,10 +55,17 @@ public class LDADataset {
   //link to a global dictionary (optional), null for train data, not null for test data
   private Dictionary globalDict = null;
 
-  private Set<String> eliminatedUrls = new HashSet<String>();
+  // urls dropped from every document, read once from the resource /eliminated_urls and shared
+  private static final Set<String> eliminatedUrls = readEliminatedUrls();
+
+  private LineScanner scanner = null; // for reading on the calling thread
 
   public LDADataset() {
-    InputStream inputStream = this.getClass().getResourceAsStream("/eliminated_urls");
+  }
+
+  private static Set<String> readEliminatedUrls() {
+    Set<String> eliminatedUrls = new HashSet<String>();
+    InputStream inputStream = LDADataset.class.getResourceAsStream("/eliminated_urls");
     BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
     String line = null;
     try {
@@ -71,6 +78,7 @@ public class LDADataset {
     } catch (IOException e) {
       e.printStackTrace();
     }
+    return Collections.unmodifiableSet(eliminatedUrls);
   }
 
   //-------------------------------------------------------------
@@ -106,88 +114,147 @@ public class LDADataset {
    * @param str string contains doc
    */
   public void addDoc(String str, boolean unlabeled) {
+    if (scanner == null)
+      scanner = new LineScanner();
+    char[] chars = str.toCharArray();
+    ParsedDoc doc = parseDoc(scanner, chars, 0, chars.length, unlabeled);
+    if (doc != null)
+      addDoc(doc);
+  }
+
+  /**
+   * A document line split into uid, labels and word:cf pairs, before any dictionary
+   * lookup. Lines are parsed concurrently by ParallelDatasetReader and added in order.
+   */
+  static class ParsedDoc {
+    String uid;
+    int[] labels;          // null if unlabelled
+    String[] words;        // words[0..length-1], eliminated urls and malformed items dropped
+    int[] cfs;
+    int length;
+  }
+
+  /**
+   * Parse the document line buf[from..to-1], uid\t[labels]\tword,cf word,cf ..., without
+   * touching the dictionaries; safe to call from several threads with their own scanners.
+   * Items that are not a word and a cf separated by a comma are skipped.
+   *
+   * @return null if the line has no uid
+   */
+  ParsedDoc parseDoc(LineScanner scanner, char[] buf, int from, int to, boolean unlabeled) {
 
     //read uid
-    if (!str.contains("\t"))
-      return;
-    String uid = str.substring(0, str.indexOf('\t'));
-    str = str.substring(str.indexOf('\t') + 1).trim();
+    int tab = LineScanner.indexOf(buf, from, to, '\t');
+    if (tab < 0)
+      return null;
+    ParsedDoc doc = new ParsedDoc();
+    doc.uid = new String(buf, from, tab - from);
+    from = LineScanner.trimStart(buf, tab + 1, to);
+    to = LineScanner.trimEnd(buf, from, to);
 
     // read document labels (if provided)
-    TIntArrayList labels = null;
-    if (str.startsWith("[")) {
-      String[] labelsBoundary = str.
-        substring(1). // remove initial '['
-        split("]", 2); // separate labels and str between ']'
-      String[] labelStrs = labelsBoundary[0].trim().split(",");
-      str = labelsBoundary[1].trim();
+    if (from < to && buf[from] == '[') {
+      int close = LineScanner.indexOf(buf, from + 1, to, ']');
+      if (close < 0)
+        close = to; // unterminated label list, no words
 
       // parse labels (unless we're ignoring the labels)
       if (!unlabeled) {
-        // store labels in a HashSet to ensure uniqueness
-        TIntHashSet label_set = new TIntHashSet();
-        for (String labelStr : labelStrs) {
-          try {
-            label_set.add(Integer.parseInt(labelStr));
-          } catch (NumberFormatException nfe) {
-            //System.err.println("Unknown document label ( " + labelStr + " ) for document " + docs.size() + ".");
-          }
-        }
-        labels = new TIntArrayList(label_set);
-        labels.sort();
+        doc.labels = LineScanner.parseLabels(buf, from + 1, close);
       }
+      from = LineScanner.trimStart(buf, Math.min(close + 1, to), to);
     }
 
-    String[] items = str.split(" ");
-    TIntArrayList ids = new TIntArrayList();
-    TIntArrayList cfs = new TIntArrayList();
-
-    for (String item : items) {
-      if (item.trim().equals("")) {
+    // items are separated by single spaces
+    int items = 1 + LineScanner.count(buf, from, to, ' ');
+    doc.words = new String[items];
+    doc.cfs = new int[items];
+
+    for (int i = from; i <= to; ) {
+      int space = LineScanner.indexOf(buf, i, to, ' ');
+      int itemEnd = space < 0 ? to : space;
+      int itemStart = i;
+      i = itemEnd + 1;
+      if (LineScanner.trimStart(buf, itemStart, itemEnd) == itemEnd) {
+        continue;
+      }
+      // word,cf, trailing commas are ignored
+      int comma = LineScanner.indexOf(buf, itemStart, itemEnd, ',');
+      if (comma < 0) {
         continue;
       }
-      String[] wordCf = item.split(",");
-      if (wordCf.length != 2) {
+      int cfEnd = LineScanner.indexOf(buf, comma + 1, itemEnd, ',');
+      if (cfEnd < 0)
+        cfEnd = itemEnd;
+      if (cfEnd == comma + 1 || !allCommas(buf, cfEnd, itemEnd)) {
         continue;
       }
+      String word = scanner.word(buf, itemStart, comma);
+      if(eliminatedUrls.contains(word))
+        continue;
       try {
-        String word = wordCf[0];
-        if(eliminatedUrls.contains(word))
-          continue;
-        int cf = Integer.parseInt(wordCf[1]);
-        int _id = localDict.getWord2id().size();
-
-        if (localDict.contains(word))
-          _id = localDict.getID(word);
-
-        if (globalDict != null) {
-          //get the global id
-          if (globalDict.contains(word)) {
-            localDict.addWord(word);
-
-            lid2gid.put(_id, globalDict.getID(word));
-            gid2lid.put(globalDict.getID(word), _id);
-            ids.add(_id);
-            cfs.add(cf);
-          }
-        } else {
-          localDict.addWord(word);
-          ids.add(_id);
-          cfs.add(cf);
-        }
+        doc.cfs[doc.length] = LineScanner.parseIntStrict(buf, comma + 1, cfEnd);
+        doc.words[doc.length] = word;
+        doc.length++;
       } catch (NumberFormatException e) {
         e.printStackTrace();
-        continue;
       }
     }
-    if(ids.size()==0)
+    return doc;
+  }
+
+  private static boolean allCommas(char[] buf, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] != ',')
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * add a parsed document, assigning dictionary ids to its words
+   */
+  void addDoc(ParsedDoc parsed) {
+    int[] ids = new int[parsed.length];
+    int[] cfs = new int[parsed.length];
+    int length = 0;
+
+    for (int i = 0; i < parsed.length; i++) {
+      String word = parsed.words[i];
+      int cf = parsed.cfs[i];
+      int _id = localDict.getID(word);
+      if (_id < 0)
+        _id = localDict.size();
+
+      if (globalDict != null) {
+        //get the global id
+        int gid = globalDict.getID(word);
+        if (gid >= 0) {
+          localDict.addWord(word);
+
+          lid2gid.put(_id, gid);
+          gid2lid.put(gid, _id);
+          ids[length] = _id;
+          cfs[length++] = cf;
+        }
+      } else {
+        localDict.addWord(word);
+        ids[length] = _id;
+        cfs[length++] = cf;
+      }
+    }
+    if(length==0)
       return;
-    Document doc = new Document(ids, cfs, str, labels);
+    if (length < parsed.length) {
+      ids = Arrays.copyOf(ids, length);
+      cfs = Arrays.copyOf(cfs, length);
+    }
+    Document doc = new Document(ids, cfs, parsed.labels);
     setDoc(doc, docs.size());
     //put uid and Doc into map
-    uidDocNums.put(uid, docs.size());
-    docNumUids.put(docs.size(), uid);
-    V = localDict.getWord2id().size();
+    uidDocNums.put(parsed.uid, docs.size());
+    docNumUids.put(docs.size(), parsed.uid);
+    V = localDict.size();
   }
 
   //---------------------------------------------------------------
@@ -200,15 +267,30 @@ public class LDADataset {
    * @return true if success and false otherwise
    */
   public boolean readDataSet(String filename, boolean unlabeled) throws FileNotFoundException, IOException {
-    BufferedReader reader = null;
+    return readDataSet(filename, unlabeled, 1);
+  }
+
+  /**
+   * read a dataset from a file, with nthreads > 1 through ParallelDatasetReader
+   *
+   * @return true if success and false otherwise
+   */
+  public boolean readDataSet(String filename, boolean unlabeled, int nthreads) throws FileNotFoundException, IOException {
+    InputStream in = new FileInputStream(filename);
     if (filename.endsWith(".gz"))
-      reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filename)), "UTF-8"));
-    else
-      reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+      in = new GZIPInputStream(in, 1 << 16);
+    LineReader reader = new LineReader(new InputStreamReader(in, "UTF-8"));
     try {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        addDoc(line, unlabeled);
+      if (nthreads > 1) {
+        ParallelDatasetReader.read(this, reader, unlabeled, nthreads);
+      } else {
+        if (scanner == null)
+          scanner = new LineScanner();
+        while (reader.next()) {
+          ParsedDoc doc = parseDoc(scanner, reader.getBuffer(), reader.getStart(), reader.getEnd(), unlabeled);
+          if (doc != null)
+            addDoc(doc);
+        }
       }
       setM(docs.size());
 
@@ -223,6 +305,10 @@ public class LDADataset {
     }
   }
 
+  public Set<String> getEliminatedUrls() {
+    return eliminatedUrls;
+  }
+
   public Dictionary getLocalDict() {
     return localDict;
   }
@@ -302,7 +388,7 @@ public class LDADataset {
       //docs.get(i).mergeDoc(trainedDoc);
       mergeDocument(docs.get(i), trainedDoc, est);
     }
-    setV(localDict.getWord2id().size());
+    setV(localDict.size());
     System.out.println("localDict size is " + V);
   }
 
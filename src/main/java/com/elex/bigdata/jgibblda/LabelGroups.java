@@ -0,0 +1,54 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Groups the documents of a dataset by identical label set. Labelled corpora only use a handful
+ * of distinct label sets, so samplers can keep per-group state (see LabelKernel) instead of
+ * going through every document's labels on every token.
+ */
+public class LabelGroups {
+  private int[] docGroups;     // docGroups[m]: group of document m, -1 if it has no labels
+  private int[][] groupTopics; // groupTopics[g]: sorted topics of the label set of group g
+
+  public LabelGroups(LDADataset data, int M) {
+    docGroups = new int[M];
+    Map<TIntArrayList, Integer> groupIds = new HashMap<TIntArrayList, Integer>();
+    List<int[]> topics = new ArrayList<int[]>();
+
+    for (int m = 0; m < M; m++) {
+      int[] labels = data.getDocs().get(m).getLabels();
+      if (labels == null || labels.length == 0) {
+        docGroups[m] = -1;
+        continue;
+      }
+      TIntArrayList key = new TIntArrayList(labels);
+      Integer g = groupIds.get(key);
+      if (g == null) {
+        g = topics.size();
+        groupIds.put(key, g);
+        topics.add(labels);
+      }
+      docGroups[m] = g;
+    }
+
+    groupTopics = topics.toArray(new int[topics.size()][]);
+  }
+
+  public int getGroup(int m) {
+    return docGroups[m];
+  }
+
+  public int[] getTopics(int group) {
+    return groupTopics[group];
+  }
+
+  public int size() {
+    return groupTopics.length;
+  }
+}
@@ -0,0 +1,132 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Sampling kernel for labelled documents. For each label group it keeps the group's topics and
+ * the inverse denominators 1 / (nwsum[k] + Vbeta) aligned with them, so drawing a topic is a
+ * tight loop over the group's few topics without per-topic label checks or divisions.
+ * The owner sets all denominators once per sweep and refreshes a topic's denominator whenever
+ * its nwsum changes.
+ */
+public class LabelKernel {
+  private LabelGroups groups;
+  private double alpha;
+  private double beta;
+
+  private double[][] invDen; // invDen[g][i]: inverse denominator of topic groups.getTopics(g)[i]
+  private int[][] slots;     // slots[k]: (group, index) pairs at which topic k occurs
+
+  // temp variables for sampling
+  private double[] p;
+
+  public LabelKernel(LabelGroups groups, int K, double alpha, double beta) {
+    this.groups = groups;
+    this.alpha = alpha;
+    this.beta = beta;
+
+    int[] counts = new int[K];
+    int maxSize = 0;
+    invDen = new double[groups.size()][];
+    for (int g = 0; g < groups.size(); g++) {
+      int[] topics = groups.getTopics(g);
+      invDen[g] = new double[topics.length];
+      maxSize = Math.max(maxSize, topics.length);
+      for (int topic : topics) {
+        counts[topic]++;
+      }
+    }
+
+    slots = new int[K][];
+    for (int k = 0; k < K; k++) {
+      slots[k] = new int[2 * counts[k]];
+      counts[k] = 0;
+    }
+    for (int g = 0; g < groups.size(); g++) {
+      int[] topics = groups.getTopics(g);
+      for (int i = 0; i < topics.length; i++) {
+        int[] slot = slots[topics[i]];
+        slot[counts[topics[i]]++] = g;
+        slot[counts[topics[i]]++] = i;
+      }
+    }
+
+    p = new double[maxSize];
+  }
+
+  /**
+   * set the denominator (nwsum[k] + Vbeta) of topic k
+   */
+  public void setDenominator(int k, double den) {
+    double inv = 1.0 / den;
+    int[] slot = slots[k];
+    for (int j = 0; j < slot.length; j += 2) {
+      invDen[slot[j]][slot[j + 1]] = inv;
+    }
+  }
+
+  /**
+   * draw a topic of group g for a word, the nd and nw rows are given as (array, offset) pairs
+   * @param u uniform in [0, 1)
+   */
+  public int sample(int g, int[] nd, int ndOff, int[] nw, int nwOff, double u) {
+    int[] topics = groups.getTopics(g);
+    double[] inv = invDen[g];
+    int K_m = topics.length;
+
+    double sum = 0;
+    for (int i = 0; i < K_m; i++) {
+      int k = topics[i];
+      sum += (nd[ndOff + k] + alpha) * (nw[nwOff + k] + beta) * inv[i];
+      p[i] = sum;
+    }
+    return draw(topics, K_m, u * sum);
+  }
+
+  /**
+   * draw a topic of group g during inference, the word count is trained + new counts
+   * @param u uniform in [0, 1)
+   */
+  public int sample(int g, int[] nd, int ndOff, int[] trnNw, int trnNwOff, int[] nw, int nwOff, double u) {
+    int[] topics = groups.getTopics(g);
+    double[] inv = invDen[g];
+    int K_m = topics.length;
+
+    double sum = 0;
+    for (int i = 0; i < K_m; i++) {
+      int k = topics[i];
+      sum += (nd[ndOff + k] + alpha) * (trnNw[trnNwOff + k] + nw[nwOff + k] + beta) * inv[i];
+      p[i] = sum;
+    }
+    return draw(topics, K_m, u * sum);
+  }
+
+  /**
+   * same as above but with document-local topic totals (-infseparately), the denominators
+   * differ per document so they are computed inline instead of cached
+   */
+  public int sample(int g, int[] nd, int ndOff, int[] trnNw, int trnNwOff, int[] nw, int nwOff,
+                    int[] trnNwsum, int[] nwsum_m, double Vbeta, double u) {
+    int[] topics = groups.getTopics(g);
+    int K_m = topics.length;
+
+    double sum = 0;
+    for (int i = 0; i < K_m; i++) {
+      int k = topics[i];
+      sum += (nd[ndOff + k] + alpha) * (trnNw[trnNwOff + k] + nw[nwOff + k] + beta) / (trnNwsum[k] + nwsum_m[k] + Vbeta);
+      p[i] = sum;
+    }
+    return draw(topics, K_m, u * sum);
+  }
+
+  private int draw(int[] topics, int K_m, double u) {
+    int i;
+    for (i = 0; i < K_m - 1; i++) {
+      if (p[i] > u)
+        break;
+    }
+    return topics[i];
+  }
+
+  public LabelGroups getGroups() {
+    return groups;
+  }
+}
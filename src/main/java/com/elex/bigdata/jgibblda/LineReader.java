@@ -0,0 +1,111 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the lines of a Reader into one reusable char buffer, like BufferedReader.readLine
+ * (lines end at \n, \r or \r\n) but without creating a String per line. After next() the
+ * line is getBuffer()[getStart()..getEnd()-1], valid until the following call.
+ */
+public class LineReader {
+  private Reader in;
+  private char[] buf = new char[1 << 16];
+  private int pos = 0;   // first unread char
+  private int limit = 0; // end of the chars read so far
+  private int start = 0; // current line
+  private int end = 0;
+  private boolean skipLF = false; // the last line ended with \r, skip a following \n
+
+  public LineReader(Reader in) {
+    this.in = in;
+  }
+
+  /**
+   * advance to the next line
+   * @return false at the end of the input
+   */
+  public boolean next() throws IOException {
+    if (skipLF) {
+      skipLF = false;
+      if (pos == limit && !fill())
+        return false;
+      if (buf[pos] == '\n')
+        pos++;
+    }
+
+    int i = pos;
+    while (true) {
+      for (; i < limit; i++) {
+        char c = buf[i];
+        if (c == '\n' || c == '\r') {
+          start = pos;
+          end = i;
+          pos = i + 1;
+          if (c == '\r') {
+            if (pos < limit) {
+              if (buf[pos] == '\n')
+                pos++;
+            } else {
+              skipLF = true;
+            }
+          }
+          return true;
+        }
+      }
+
+      // no line end in buf[pos..limit-1], read more after it
+      int scanned = i - pos;
+      if (!fill()) {
+        if (limit > pos) {
+          // last line without a line end
+          start = pos;
+          end = limit;
+          pos = limit;
+          return true;
+        }
+        return false;
+      }
+      i = pos + scanned;
+    }
+  }
+
+  // move the unread chars to the front of buf and read after them, false at end of input
+  private boolean fill() throws IOException {
+    int unread = limit - pos;
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, unread);
+    } else if (unread == buf.length) {
+      char[] grown = new char[buf.length * 2];
+      System.arraycopy(buf, 0, grown, 0, unread);
+      buf = grown;
+    }
+    pos = 0;
+    limit = unread;
+
+    int n;
+    do {
+      n = in.read(buf, limit, buf.length - limit);
+    } while (n == 0);
+    if (n < 0)
+      return false;
+    limit += n;
+    return true;
+  }
+
+  public char[] getBuffer() {
+    return buf;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  public int getEnd() {
+    return end;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+}
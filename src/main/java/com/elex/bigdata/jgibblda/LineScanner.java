@@ -0,0 +1,155 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.Arrays;
+
+/**
+ * Char-level helpers for parsing data and tassign lines in place, from the buffer of a
+ * LineReader. Numbers are read without creating Strings and follow Integer.parseInt.
+ * Words are returned through a direct-mapped cache of recently seen words, so a word that
+ * repeats, as urls do, is created once instead of once per occurrence. The static methods
+ * are thread-safe, the cache is not: every parsing thread uses its own scanner.
+ */
+public class LineScanner {
+  public static final long NO_INT = Long.MIN_VALUE; // parseInt result for a malformed number
+
+  private static final int CACHE_SIZE = 1 << 15;
+
+  private String[] cache = new String[CACHE_SIZE];
+
+  /**
+   * buf[from..to-1] as a String, shared with earlier calls for the same chars when possible
+   */
+  public String word(char[] buf, int from, int to) {
+    int h = 0;
+    for (int i = from; i < to; i++) {
+      h = 31 * h + buf[i];
+    }
+    int slot = (h ^ (h >>> 15)) & (CACHE_SIZE - 1);
+    String s = cache[slot];
+    if (s == null || !equals(s, buf, from, to)) {
+      s = new String(buf, from, to - from);
+      cache[slot] = s;
+    }
+    return s;
+  }
+
+  private static boolean equals(String s, char[] buf, int from, int to) {
+    if (s.length() != to - from)
+      return false;
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i - from) != buf[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * position of the first c in buf[from..to-1], -1 if there is none
+   */
+  public static int indexOf(char[] buf, int from, int to, char c) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == c)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * start of buf[from..to-1] without leading whitespace, as String.trim
+   */
+  public static int trimStart(char[] buf, int from, int to) {
+    while (from < to && buf[from] <= ' ') {
+      from++;
+    }
+    return from;
+  }
+
+  /**
+   * end of buf[from..to-1] without trailing whitespace, as String.trim
+   */
+  public static int trimEnd(char[] buf, int from, int to) {
+    while (to > from && buf[to - 1] <= ' ') {
+      to--;
+    }
+    return to;
+  }
+
+  /**
+   * the sorted, distinct ints of the comma separated list buf[from..to-1] (trimmed as a
+   * whole), items that are not ints are skipped
+   */
+  public static int[] parseLabels(char[] buf, int from, int to) {
+    to = trimEnd(buf, from, to);
+    from = trimStart(buf, from, to);
+    int[] labels = new int[1 + count(buf, from, to, ',')];
+    int n = 0;
+    for (int i = from; i <= to; ) {
+      int comma = indexOf(buf, i, to, ',');
+      int labelEnd = comma < 0 ? to : comma;
+      long label = parseInt(buf, i, labelEnd);
+      if (label != NO_INT)
+        labels[n++] = (int) label;
+      i = labelEnd + 1;
+    }
+    Arrays.sort(labels, 0, n);
+    int distinct = 0;
+    for (int i = 0; i < n; i++) {
+      if (distinct == 0 || labels[i] != labels[distinct - 1])
+        labels[distinct++] = labels[i];
+    }
+    return distinct == labels.length ? labels : Arrays.copyOf(labels, distinct);
+  }
+
+  /**
+   * number of c in buf[from..to-1]
+   */
+  public static int count(char[] buf, int from, int to, char c) {
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      if (buf[i] == c)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Integer.parseInt of buf[from..to-1]
+   * @return the value, NO_INT if it is not a valid int
+   */
+  public static long parseInt(char[] buf, int from, int to) {
+    if (from >= to)
+      return NO_INT;
+    int i = from;
+    boolean negative = false;
+    if (buf[i] < '0') {
+      if (buf[i] == '-') {
+        negative = true;
+      } else if (buf[i] != '+') {
+        return NO_INT;
+      }
+      if (++i == to)
+        return NO_INT;
+    }
+    long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+    long value = 0;
+    for (; i < to; i++) {
+      int digit = Character.digit(buf[i], 10);
+      if (digit < 0)
+        return NO_INT;
+      value = value * 10 + digit;
+      if (value > limit)
+        return NO_INT;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Integer.parseInt of buf[from..to-1], throwing the same NumberFormatException
+   */
+  public static int parseIntStrict(char[] buf, int from, int to) {
+    long value = parseInt(buf, from, to);
+    if (value == NO_INT)
+      return Integer.parseInt(new String(buf, from, to - from));
+    return (int) value;
+  }
+}
@@ -0,0 +1,197 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Read-only dictionary mapped from a word map index file (.wordmap.idx, saved with
+ * -wordmapindex), so that inference does not read the whole vocabulary of the trained model:
+ * a lookup probes the mapped hash table and compares the mapped bytes of the candidate words,
+ * getWord decodes only the word asked for, and only the pages that lookups touch are read.
+ *
+ * File layout, little-endian: magic, version, number of words V, hash table size T, number
+ * of word bytes B, 0 (ints), then int[T] table of id + 1 (0 for an empty slot), int[V] hash
+ * of every word, int[V + 1] word offsets and byte[B] UTF-8 words: the arrays of Dictionary
+ * as they are, see Dictionary.writeIndex.
+ */
+public class MappedDictionary extends Dictionary {
+  public static final int MAGIC = 0x4957444c; // "LDWI"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 24;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private String filename;
+  private int numWords;
+  private int mask;         // hash table size - 1
+  private IntBuffer table;
+  private IntBuffer hashes;
+  private IntBuffer offsets;
+  private ByteBuffer words;
+
+  private MappedDictionary(String filename) {
+    this.filename = filename;
+  }
+
+  /**
+   * map a word map index file
+   */
+  public static MappedDictionary open(String filename) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Not a word map index: too short");
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Not a word map index: bad magic number");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported word map index version: " + version);
+      }
+      MappedDictionary dict = new MappedDictionary(filename);
+      dict.numWords = header.getInt();
+      int tableSize = header.getInt();
+      int numBytes = header.getInt();
+      if (Integer.bitCount(tableSize) != 1
+        || channel.size() != HEADER_SIZE + 4L * tableSize + 4L * dict.numWords + 4L * (dict.numWords + 1) + numBytes) {
+        throw new IOException("Corrupt word map index: " + filename);
+      }
+      dict.mask = tableSize - 1;
+
+      long pos = HEADER_SIZE;
+      dict.table = map(channel, pos, 4L * tableSize).asIntBuffer();
+      pos += 4L * tableSize;
+      dict.hashes = map(channel, pos, 4L * dict.numWords).asIntBuffer();
+      pos += 4L * dict.numWords;
+      dict.offsets = map(channel, pos, 4L * (dict.numWords + 1)).asIntBuffer();
+      pos += 4L * (dict.numWords + 1);
+      dict.words = map(channel, pos, numBytes);
+      return dict;
+    } finally {
+      // the mappings stay valid
+      file.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Override
+  public int size() {
+    return numWords;
+  }
+
+  @Override
+  public String getWord(int id) {
+    if (!contains(id))
+      return null;
+    return new String(getWordBytes(id), UTF8);
+  }
+
+  @Override
+  public byte[] getWordBytes(int id) {
+    int start = offsets.get(id);
+    byte[] bytes = new byte[offsets.get(id + 1) - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = words.get(start + i);
+    }
+    return bytes;
+  }
+
+  @Override
+  public int getID(String word) {
+    byte[] bytes = scratch(word.length());
+    int length = encode(word, bytes);
+    int hash = hash(bytes, 0, length);
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = table.get(slot);
+      if (entry == 0)
+        return -1;
+      if (hashes.get(entry - 1) == hash && equals(entry - 1, bytes, length))
+        return entry - 1;
+    }
+  }
+
+  // whether word id is bytes[0 .. length)
+  private boolean equals(int id, byte[] bytes, int length) {
+    int start = offsets.get(id);
+    if (offsets.get(id + 1) - start != length)
+      return false;
+    for (int i = 0; i < length; i++) {
+      if (words.get(start + i) != bytes[i])
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean contains(int id) {
+    return id >= 0 && id < numWords;
+  }
+
+  /**
+   * the id of word, which must be in the dictionary as it cannot be added to
+   */
+  @Override
+  public int addWord(String word) {
+    int id = getID(word);
+    if (id < 0) {
+      throw new UnsupportedOperationException("Cannot add a word to the mapped dictionary " + filename);
+    }
+    return id;
+  }
+
+  @Override
+  public int appendWord(byte[] utf8, int off, int len) {
+    throw new UnsupportedOperationException("Cannot add a word to the mapped dictionary " + filename);
+  }
+
+  @Override
+  public boolean readWordMap(String wordMapFile) {
+    throw new UnsupportedOperationException("Cannot read a word map into the mapped dictionary " + filename);
+  }
+
+  @Override
+  public boolean writeWordMap(String wordMapFile, int compression) {
+    try {
+      GzipTextOutput writer = new GzipTextOutput(wordMapFile, compression);
+      for (int i = 0; i < numWords; i++) {
+        byte[] word = getWordBytes(i);
+        writer.write(word, 0, word.length).write('\n');
+      }
+      writer.close();
+      return true;
+    } catch (Exception e) {
+      System.out.println("Error while writing word map " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  @Override
+  public boolean writeIndex(String indexFile) {
+    try {
+      if (!new File(indexFile).getCanonicalPath().equals(new File(filename).getCanonicalPath())) {
+        Files.copy(new File(filename).toPath(), new File(indexFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    } catch (Exception e) {
+      System.out.println("Error while writing word map index " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+}
@@ -28,21 +28,21 @@
 package com.elex.bigdata.jgibblda;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.set.hash.TIntHashSet;
 
 public class Model {
 
@@ -56,6 +56,10 @@ public class Model {
   private static String othersSuffix = ".others.gz";   // suffix for containing other parameters
   private static String twordsSuffix = ".twords.gz";   // suffix for file containing words-per-topics
   private static String wordMapSuffix = ".wordmap.gz"; // suffix for file containing word to id map
+  private static String wordMapIndexSuffix = ".wordmap.idx"; // suffix for the word map index, see MappedDictionary
+  private static String binarySuffix = ".model.bin";   // suffix for the binary model file, see BinaryModel
+  private static String checkpointSuffix = ".checkpoint"; // suffix for the estimation checkpoint, see Checkpoint
+  private static String stateSuffix = ".state";   // suffix for the -incremental inference state, see InferenceState
 
   //---------------------------------------------------------------
   //	Model Parameters and Variables
@@ -65,6 +69,10 @@ public class Model {
   private String dir = "./";
   private String dfile = "trndocs.dat";
   private boolean unlabeled = false;
+  private boolean binary = false; // also save the binary model file
+  private boolean wordMapIndex = false; // also save the word map index
+  private int nthreads = 1;       // threads used to read the data file and to save the model
+  private int compression = GzipTextOutput.level(GzipTextOutput.DEFAULT); // deflate level of the saved files
   private String modelName = "model";
   private LDADataset data; // link to a dataset
   private LDADataset currentLoadedData; //when estimate from last estimate clonedData contains the new documents.
@@ -79,22 +87,30 @@ public class Model {
   private int samplingLag = 5;// Gibbs sampling sample lag
   private int numSamples = 1; // number of samples taken
   private int liter = 0;      // the iteration at which the model was saved
+  private int convergedIter = 0; // the iteration at which sampling stopped on convergence, 0 if it ran all iterations
   private int twords = 20;    // print out top words per each topic
+  private long seed;          // seed of all random streams used with this model
 
-  // Estimated/Inferenced parameters
+  // Estimated/Inferenced parameters, allocated by the first update
   private double[][] theta = null; // theta: document - topic distributions, size M x K
-  private double[][] phi = null;   // phi: topic-word distributions, size K x V
+  private double[][] phi = null;   // phi: topic-word distributions, size K x V, only kept for twords
+  private boolean sparseTheta = false;         // accumulate theta in thetaSums instead of theta
+  private SparseTheta thetaSums = null;        // theta as summed sparse counts, with sparseTheta
+  private double[][] carriedTheta = null;      // carriedTheta[m]: theta carried over by -incremental, or null
 
   // Temp variables while sampling
-  private TIntArrayList[] z = null; // topic assignments for words, size M x doc.size()
-  private int[][] nw = null;       // nw[i][j]: number of instances of word/term i assigned to topic j, size V x K
-  private int[][] nd = null;       // nd[i][j]: number of words in document i assigned to topic j, size M x K
+  private TopicAssignments z = null; // topic assignments for words, size M x doc.size()
+  private CountMatrix nw = null;   // nw(i, j): number of instances of word/term i assigned to topic j, size V x K
+  private DocTopicCounts nd = null; // nd(i, j): number of words in document i assigned to topic j, size M x K
+  private boolean sparseNd = false; // keep nd sparse, see DocTopicCounts
   private int[] nwsum = null;      // nwsum[j]: total number of words assigned to topic j, size K
   private int[] ndsum = null;      // ndsum[i]: total number of words in document i, size M
 
   private ArrayList<TIntObjectHashMap<int[]>> nw_inf = null;       // nw[m][i][j]: number of instances of word/term i assigned to topic j in doc m, size M x V x K
   private int[][] nwsum_inf = null;      // nwsum[m][j]: total number of words assigned to topic j in doc m, size M x K
 
+  private LabelGroups labelGroups = null; // documents grouped by label set, for LabelKernel
+
   // temp variables for sampling
   private double[] p = null;
 
@@ -107,6 +123,14 @@ public class Model {
   }
 
   public Model(LDACmdOption option, Model trnModel) throws FileNotFoundException, IOException {
+    this(option, trnModel, true);
+  }
+
+  /**
+   * @param readData whether to read the data file -dfile, a trained model that is loaded
+   * for inference does not need it
+   */
+  public Model(LDACmdOption option, Model trnModel, boolean readData) throws FileNotFoundException, IOException {
     modelName = option.modelName;
     K = option.K;
 
@@ -127,7 +151,14 @@ public class Model {
 
     dfile = option.dfile;
     unlabeled = option.unlabeled;
+    binary = option.binary;
+    wordMapIndex = option.wordMapIndex;
+    sparseTheta = option.sparseTheta;
+    sparseNd = option.sparseNd;
+    nthreads = option.nthreads;
+    compression = GzipTextOutput.level(option.compression);
     twords = option.twords;
+    seed = option.seed >= 0 ? option.seed : System.nanoTime() & Long.MAX_VALUE;
 
     // initialize dataset
     data = new LDADataset();
@@ -145,7 +176,18 @@ public class Model {
     }
 
     // read in data
-    data.readDataSet(dir + File.separator + dfile, unlabeled);
+    if (readData)
+      data.readDataSet(dir + File.separator + dfile, unlabeled, nthreads);
+  }
+
+  /**
+   * a model that is only loaded from and saved to its files, without reading a data file
+   */
+  public Model(String dir, String modelName, boolean unlabeled) {
+    this.dir = dir.endsWith(File.separator) ? dir.substring(0, dir.length() - 1) : dir;
+    this.modelName = modelName;
+    this.unlabeled = unlabeled;
+    data = new LDADataset();
   }
 
   //---------------------------------------------------------------
@@ -161,10 +203,11 @@ public class Model {
       //data.readDataSet(dir + File.separator + dfile, unlabeled);
       M = data.getM();
       V = data.getV();
-      z = new TIntArrayList[M];
+      z = new TopicAssignments(K, M, countTokens());
     } else {
       //load model (alpha/beta/K/liter/V/M and documents and z(doc-word-topic);set data to model's data)
-      if (!loadModel()) {
+      //inference only looks words up in the trained dictionary, which can then be mapped
+      if (!loadModel(!est)) {
         System.out.println("Fail to load word-topic assignment file of the model!");
         return false;
       }
@@ -174,7 +217,7 @@ public class Model {
         currentLoadedData = new LDADataset();
         //set local dictionary as trained dictionary
         currentLoadedData.setLocalDict(data.getLocalDict());
-        currentLoadedData.readDataSet(dir + File.separator + dfile, unlabeled);
+        currentLoadedData.readDataSet(dir + File.separator + dfile, unlabeled, nthreads);
       }
 
 
@@ -188,22 +231,23 @@ public class Model {
     }
 
     p = new double[K];
+    FastRandom initRandom = newRandom(0);
     //est from last estimation merge currentLoadedData to data
     if (est && !random) {
       mergeTrainData(currentLoadedData, data);
       M = data.getM();
       V = data.getV();
-      TIntArrayList[] mergedZ = new TIntArrayList[data.getM()];
+      TopicAssignments mergedZ = new TopicAssignments(K, M, countTokens());
       for (int m = 0; m < M; m++) {
-        mergedZ[m]=new TIntArrayList();
+        mergedZ.addDocument();
         for (int n = 0; n < data.getDocs().get(m).getLength(); n++) {
-          int topic = (int) Math.floor(Math.random() * K);
-          if (m < z.length && n<z[m].size())
-            topic=z[m].get(n);
-          mergedZ[m].add(topic);
+          int topic = initRandom.nextInt(K);
+          if (m < z.getM() && n < z.size(m))
+            topic = z.get(m, n);
+          mergedZ.add(topic);
         }
       }
-      z=mergedZ;
+      z = mergedZ;
     }
     //init nw(word(Cf)-topic),nd((word numbers in a doc)-topic),nwSum(words-topic),ndSum(words-doc)
     initSS();
@@ -212,7 +256,7 @@ public class Model {
     for (int m = 0; m < data.getM(); m++) {
       //estimate from raw data;init z.
       if (random) {
-        z[m] = new TIntArrayList();
+        z.addDocument();
       }
 
       // initilize for z
@@ -224,23 +268,22 @@ public class Model {
 
         // random init a topic or load existing topic from z[m]
         if (random) {
-          topic = (int) Math.floor(Math.random() * K);
-          z[m].add(topic);
+          topic = initRandom.nextInt(K);
+          z.add(topic);
         } else {
-          topic = z[m].get(n);
+          topic = z.get(m, n);
         }
-        //compute nw,nd,nwsum,ndsum
-        nw[w][topic] += cf; // number of instances of word assigned to topic j
-        nd[m][topic] += cf; // number of words in document i assigned to topic j
+        //compute nw,nwsum,ndsum
+        nw.add(w, topic, cf); // number of instances of word assigned to topic j
         nwsum[topic] += cf; // total number of words assigned to topic j
         ndsum[m] += cf;
       }
+      nd.rebuild(m); // number of words in document i assigned to topic j
 
 //            ndsum[m] = N; // total number of words in document i
     }
 
-    theta = new double[M][K];
-    phi = new double[K][V];
+    labelGroups = new LabelGroups(data, M);
 
     return true;
   }
@@ -270,6 +313,17 @@ public class Model {
   }
 
 
+  /**
+   * number of tokens in data, to size the topic assignments
+   */
+  private long countTokens() {
+    long tokens = 0;
+    for (int m = 0; m < data.getM(); m++) {
+      tokens += data.getDocs().get(m).getLength();
+    }
+    return tokens;
+  }
+
   public boolean initInf() {
     nw_inf = new ArrayList<TIntObjectHashMap<int[]>>();
 
@@ -289,7 +343,7 @@ public class Model {
         int w = data.getDocs().get(m).getWords()[n];
         int cfs = data.getDocs().get(m).getCfs()[n];
 
-        int topic = z[m].get(n);
+        int topic = z.get(m, n);
 
         if (!nw_inf.get(m).containsKey(w)) {
           int[] nw_inf_m_w = new int[K];
@@ -312,28 +366,50 @@ public class Model {
    * Init sufficient stats
    */
   protected void initSS() {
-    nw = new int[V][K];
-    for (int w = 0; w < V; w++) {
-      for (int k = 0; k < K; k++) {
-        nw[w][k] = 0;
-      }
+    nw = new CountMatrix(V, K);
+    nd = new DocTopicCounts(this, M, K, sparseNd);
+
+    nwsum = new int[K];
+    for (int k = 0; k < K; k++) {
+      nwsum[k] = 0;
     }
 
-    nd = new int[M][K];
+    ndsum = new int[M];
     for (int m = 0; m < M; m++) {
-      for (int k = 0; k < K; k++) {
-        nd[m][k] = 0;
-      }
+      ndsum[m] = 0;
     }
+  }
 
-    nwsum = new int[K];
+  /**
+   * recompute nw and nwsum from z
+   */
+  public void recountNw() {
+    nw.clear();
     for (int k = 0; k < K; k++) {
       nwsum[k] = 0;
     }
+    for (int m = 0; m < M; m++) {
+      Document doc = data.getDocs().get(m);
+      for (int n = 0; n < doc.getLength(); n++) {
+        int topic = z.get(m, n);
+        nw.add(doc.getWords()[n], topic, doc.getCfs()[n]);
+        nwsum[topic] += doc.getCfs()[n];
+      }
+    }
+  }
 
-    ndsum = new int[M];
+  /**
+   * recompute nw, nd, nwsum and ndsum from z
+   */
+  public void recount() {
+    recountNw();
     for (int m = 0; m < M; m++) {
       ndsum[m] = 0;
+      Document doc = data.getDocs().get(m);
+      for (int n = 0; n < doc.getLength(); n++) {
+        ndsum[m] += doc.getCfs()[n];
+      }
+      nd.rebuild(m);
     }
   }
 
@@ -361,22 +437,45 @@ public class Model {
   }
 
   public void updateTheta() {
+    if (sparseTheta) {
+      if (thetaSums == null)
+        thetaSums = new SparseTheta(M, K);
+      thetaSums.addSample(nd);
+      return;
+    }
+    if (theta == null)
+      theta = new double[M][K];
+
     double Kalpha = K * alpha;
+    int[] topics = new int[K];
+    int[] counts = new int[K];
     for (int m = 0; m < M; m++) {
-      for (int k = 0; k < K; k++) {
+      int size = nd.nonZero(m, topics, counts);
+      for (int k = 0, i = 0; k < K; k++) {
+        int count = 0;
+        if (i < size && topics[i] == k)
+          count = counts[i++];
         if (numSamples > 1) theta[m][k] *= numSamples - 1; // convert from mean to sum
-        theta[m][k] += (nd[m][k] + alpha) / (ndsum[m] + Kalpha);
+        theta[m][k] += (count + alpha) / (ndsum[m] + Kalpha);
         if (numSamples > 1) theta[m][k] /= numSamples; // convert from sum to mean
       }
     }
   }
 
   public void updatePhi() {
+    if (twords <= 0)
+      return; // phi is only saved as twords
+    if (phi == null)
+      phi = new double[K][V];
+
     double Vbeta = V * beta;
-    for (int k = 0; k < K; k++) {
-      for (int w = 0; w < V; w++) {
+    // walk nw row by row, it is stored word-major
+    for (int w = 0; w < V; w++) {
+      int[] nwPage = nw.page(w);
+      int nwOff = nw.offset(w);
+      for (int k = 0; k < K; k++) {
         if (numSamples > 1) phi[k][w] *= numSamples - 1; // convert from mean to sum
-        phi[k][w] += (nw[w][k] + beta) / (nwsum[k] + Vbeta);
+        phi[k][w] += (nwPage[nwOff + k] + beta) / (nwsum[k] + Vbeta);
         if (numSamples > 1) phi[k][w] /= numSamples; // convert from sum to mean
       }
     }
@@ -384,18 +483,27 @@ public class Model {
 
   // for inference
   public void updatePhi(Model trnModel) {
-    double Vbeta = trnModel.V * beta;
-    for (int k = 0; k < K; k++) {
-      for (int _w = 0; _w < V; _w++) {
-        if (data.getLid2gid().containsKey(_w)) {
-          int id = data.getLid2gid().get(_w);
+    if (twords <= 0)
+      return; // phi is only saved as twords
+    if (phi == null)
+      phi = new double[K][V];
 
+    double Vbeta = trnModel.V * beta;
+    for (int _w = 0; _w < V; _w++) {
+      if (data.getLid2gid().containsKey(_w)) {
+        int id = data.getLid2gid().get(_w);
+        int[] trnNwPage = trnModel.nw.page(id);
+        int trnNwOff = trnModel.nw.offset(id);
+        int[] nwPage = nw.page(_w);
+        int nwOff = nw.offset(_w);
+
+        for (int k = 0; k < K; k++) {
           if (numSamples > 1) phi[k][_w] *= numSamples - 1; // convert from mean to sum
-          phi[k][_w] += (trnModel.nw[id][k] + nw[_w][k] + beta) / (trnModel.nwsum[k] + nwsum[k] + Vbeta);
+          phi[k][_w] += (trnNwPage[trnNwOff + k] + nwPage[nwOff + k] + beta) / (trnModel.nwsum[k] + nwsum[k] + Vbeta);
           if (numSamples > 1) phi[k][_w] /= numSamples; // convert from sum to mean
-        } // else ignore words that don't appear in training
-      } //end foreach word
-    } // end foreach topic
+        } //end foreach topic
+      } // else ignore words that don't appear in training
+    } // end foreach word
   }
 
   //---------------------------------------------------------------
@@ -410,33 +518,84 @@ public class Model {
   }
 
   public boolean saveModel(String modelPrefix) {
-    if (!saveModelTAssign(dir + File.separator + modelPrefix + modelName + tassignSuffix)) {
-      return false;
-    }
+    final String prefix = dir + File.separator + modelPrefix + modelName;
+    List<Callable<Boolean>> saves = new ArrayList<Callable<Boolean>>();
+    saves.add(new Callable<Boolean>() {
+      public Boolean call() {
+        return saveModelTAssign(prefix + tassignSuffix);
+      }
+    });
+    saves.add(new Callable<Boolean>() {
+      public Boolean call() {
+        return saveModelOthers(prefix + othersSuffix);
+      }
+    });
+    saves.add(new Callable<Boolean>() {
+      public Boolean call() {
+        return saveModelTheta(prefix + thetaSuffix);
+      }
+    });
 
-    if (!saveModelOthers(dir + File.separator + modelPrefix + modelName + othersSuffix)) {
-      return false;
-    }
+    //saves.add(new Callable<Boolean>() {
+    //  public Boolean call() {
+    //    return saveModelPhi(prefix + phiSuffix);
+    //  }
+    //});
 
-    if (!saveModelTheta(dir + File.separator + modelPrefix + modelName + thetaSuffix)) {
-      return false;
+    if (twords > 0) {
+      saves.add(new Callable<Boolean>() {
+        public Boolean call() {
+          return saveModelTwords(prefix + twordsSuffix);
+        }
+      });
     }
 
-    //if (!saveModelPhi(dir + File.separator + modelPrefix + modelName + phiSuffix)) {
-    //    return false;
-    //}
-
-    if (twords > 0) {
-      if (!saveModelTwords(dir + File.separator + modelPrefix + modelName + twordsSuffix)) {
-        return false;
+    saves.add(new Callable<Boolean>() {
+      public Boolean call() {
+        // the index is written after the word map, it is only used when it is not older
+        return data.getLocalDict().writeWordMap(prefix + wordMapSuffix, compression)
+          && (!wordMapIndex || data.getLocalDict().writeIndex(prefix + wordMapIndexSuffix));
       }
-    }
+    });
 
-    if (!data.getLocalDict().writeWordMap(dir + File.separator + modelPrefix + modelName + wordMapSuffix)) {
+    if (!save(saves))
       return false;
+    // after the text files, so that loadModel finds it at least as recent as the tassign file
+    return !binary || saveModelBinary(prefix + binarySuffix);
+  }
+
+  /**
+   * run the saves, concurrently with -nthreads > 1
+   * @return false if one of them failed
+   */
+  private boolean save(List<Callable<Boolean>> saves) {
+    if (nthreads <= 1) {
+      for (Callable<Boolean> save : saves) {
+        try {
+          if (!save.call())
+            return false;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return true;
     }
 
-    return true;
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(nthreads, saves.size()));
+    try {
+      boolean saved = true;
+      for (Future<Boolean> result : executor.invokeAll(saves)) {
+        saved &= result.get();
+      }
+      return saved;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while saving model", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error in model saving thread", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   /**
@@ -446,40 +605,28 @@ public class Model {
     int i, j;
 
     try {
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-        new GZIPOutputStream(
-          new FileOutputStream(filename)), "UTF-8"));
+      GzipTextOutput writer = new GzipTextOutput(filename, compression);
 
-      //write docs with topic assignments for words
-      //orig write Document in list and word in doc
-      /*
+      //every line:uid+"\t"+[labels]+"\t"+[word:cf:topic+" "]...+"\n"
       for (i = 0; i < data.getM(); i++) {
-        for (j = 0; j < data.getDocs().get(i).getLength(); ++j) {
-          writer.write(data.getDocs().get(i).getWords()[j] + ":" + data.getDocs().get(i).getCfs()[j] + ":" + z[i].get(j) + " ");
-        }
-        writer.write("\n");
-      }
-      */
-      //every line:uid+"\t"+[word:cf:topic+" "]...+"\n"
-      //
-      for (i = 0; i < data.getM(); i++) {
-        String uid = data.getUid(i);
-        writer.write(uid + "\t");
-        StringBuilder labelsBuilder=new StringBuilder();
-        labelsBuilder.append("[");
-        int[] labels = data.getDocs().get(i).getLabels();
-        if (labels != null && labels.length!=0) {
-          for (int k = 0; k < labels.length - 1; k++)
-            labelsBuilder.append(labels[k] + ",");
-          labelsBuilder.append(labels[labels.length - 1]);
+        Document doc = data.getDocs().get(i);
+        writer.write(data.getUid(i)).write('\t');
+        writer.write('[');
+        int[] labels = doc.getLabels();
+        if (labels != null) {
+          for (int k = 0; k < labels.length; k++) {
+            if (k > 0)
+              writer.write(',');
+            writer.write(labels[k]);
+          }
         }
-        labelsBuilder.append("]" + "\t");
-        //System.out.println(labelsBuilder.toString());
-        writer.write(labelsBuilder.toString());
-        for (j = 0; j < data.getDocs().get(i).getLength(); ++j) {
-          writer.write(data.getDocs().get(i).getWords()[j] + ":" + data.getDocs().get(i).getCfs()[j] + ":" + z[i].get(j) + " ");
+        writer.write(']').write('\t');
+        int[] words = doc.getWords();
+        int[] cfs = doc.getCfs();
+        for (j = 0; j < doc.getLength(); ++j) {
+          writer.write(words[j]).write(':').write(cfs[j]).write(':').write(z.get(i, j)).write(' ');
         }
-        writer.write("\n");
+        writer.write('\n');
       }
 
       writer.close();
@@ -491,24 +638,38 @@ public class Model {
     return true;
   }
 
+  /**
+   * Save the binary model file
+   */
+  public boolean saveModelBinary(String filename) {
+    try {
+      BinaryModel.write(this, filename);
+    } catch (Exception e) {
+      System.out.println("Error while saving binary model: " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Save theta (topic distribution) for this model
    */
 
   public boolean saveModelTheta(String filename) {
     try {
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-        new GZIPOutputStream(
-          new FileOutputStream(filename)), "UTF-8"));
+      GzipTextOutput writer = new GzipTextOutput(filename, compression);
 
+      double[] row = new double[K];
       for (int i = 0; i < M; i++) {
-        writer.write(data.getUid(i) + "\t");
+        thetaRow(i, row);
+        writer.write(data.getUid(i)).write('\t');
         for (int j = 0; j < K; j++) {
-          if (theta[i][j] > 0) {
-            writer.write(j + ":" + theta[i][j] + " ");
+          if (row[j] > 0) {
+            writer.write(j).write(':').write(row[j]).write(' ');
           }
         }
-        writer.write("\n");
+        writer.write('\n');
       }
       writer.close();
     } catch (Exception e) {
@@ -519,22 +680,49 @@ public class Model {
     return true;
   }
 
+  /**
+   * theta of document m into row, zeros before the first update
+   */
+  public void thetaRow(int m, double[] row) {
+    if (carriedTheta != null && carriedTheta[m] != null) {
+      System.arraycopy(carriedTheta[m], 0, row, 0, K);
+    } else if (thetaSums != null) {
+      thetaSums.row(m, ndsum[m], alpha, row);
+    } else if (theta != null) {
+      System.arraycopy(theta[m], 0, row, 0, K);
+    } else {
+      Arrays.fill(row, 0);
+    }
+  }
+
+  /**
+   * keep document m as an earlier inference left it: it is not sampled and its theta is
+   * theta, see InferenceState
+   */
+  public void carryOver(int m, double[] theta) {
+    if (carriedTheta == null)
+      carriedTheta = new double[M][];
+    carriedTheta[m] = theta;
+  }
+
+  public boolean isCarried(int m) {
+    return carriedTheta != null && carriedTheta[m] != null;
+  }
+
   /**
    * Save word-topic distribution
    */
   public boolean saveModelPhi(String filename) {
     try {
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-        new GZIPOutputStream(
-          new FileOutputStream(filename)), "UTF-8"));
+      GzipTextOutput writer = new GzipTextOutput(filename, compression);
 
       for (int i = 0; i < K; i++) {
         for (int j = 0; j < V; j++) {
           if (phi[i][j] > 0) {
-            writer.write(j + ":" + phi[i][j] + " ");
+            writer.write(j).write(':').write(phi[i][j]).write(' ');
           }
         }
-        writer.write("\n");
+        writer.write('\n');
       }
       writer.close();
     } catch (Exception e) {
@@ -550,9 +738,7 @@ public class Model {
    */
   public boolean saveModelOthers(String filename) {
     try {
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-        new GZIPOutputStream(
-          new FileOutputStream(filename)), "UTF-8"));
+      GzipTextOutput writer = new GzipTextOutput(filename, compression);
 
       writer.write("alpha=" + alpha + "\n");
       writer.write("beta=" + beta + "\n");
@@ -560,6 +746,9 @@ public class Model {
       writer.write("ndocs=" + M + "\n");
       writer.write("nwords=" + V + "\n");
       writer.write("liters=" + liter + "\n");
+      if (convergedIter > 0) {
+        writer.write("convergediter=" + convergedIter + "\n");
+      }
 
       writer.close();
     } catch (Exception e) {
@@ -575,31 +764,21 @@ public class Model {
    */
   public boolean saveModelTwords(String filename) {
     try {
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-        new GZIPOutputStream(
-          new FileOutputStream(filename)), "UTF-8"));
+      GzipTextOutput writer = new GzipTextOutput(filename, compression);
 
-      if (twords > V) {
-        twords = V;
-      }
+      int[][] topWords = new int[K][];
+      double[][] topProbs = new double[K][];
+      selectTopWords(Math.min(twords, V), topWords, topProbs);
 
       for (int k = 0; k < K; k++) {
-        ArrayList<Pair> wordsProbsList = new ArrayList<Pair>();
-        for (int w = 0; w < V; w++) {
-          Pair p = new Pair(w, phi[k][w], false);
-
-          wordsProbsList.add(p);
-        }//end foreach word
-
         //print topic
-        writer.write("Topic " + k + ":\n");
-        Collections.sort(wordsProbsList);
+        writer.write("Topic ").write(k).write(":\n");
 
-        for (int i = 0; i < twords; i++) {
-          if (data.getLocalDict().contains((Integer) wordsProbsList.get(i).getFirst())) {
-            String word = data.getLocalDict().getWord((Integer) wordsProbsList.get(i).getFirst());
+        for (int i = 0; i < topWords[k].length; i++) {
+          if (data.getLocalDict().contains(topWords[k][i])) {
+            String word = data.getLocalDict().getWord(topWords[k][i]);
 
-            writer.write("\t" + word + "\t" + wordsProbsList.get(i).getSecond() + "\n");
+            writer.write('\t').write(word).write('\t').write(topProbs[k][i]).write('\n');
           }
         }
       } //end foreach topic
@@ -614,15 +793,119 @@ public class Model {
   }
 
   /**
-   * Load saved model
+   * the n most likely words of every topic and their probabilities, most likely first
+   * (equal probabilities by word id), topics split over -nthreads threads
+   */
+  private void selectTopWords(final int n, final int[][] topWords, final double[][] topProbs) {
+    int numWorkers = Math.max(1, Math.min(nthreads, K));
+    List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < numWorkers; i++) {
+      final int from = (int) ((long) K * i / numWorkers);
+      final int to = (int) ((long) K * (i + 1) / numWorkers);
+      workers.add(new Callable<Void>() {
+        public Void call() {
+          TopN top = new TopN(n);
+          for (int k = from; k < to; k++) {
+            for (int w = 0; w < V; w++) {
+              top.offer(w, phi[k][w]);
+            }
+            int size = top.sort();
+            topWords[k] = Arrays.copyOf(top.getIds(), size);
+            topProbs[k] = Arrays.copyOf(top.getValues(), size);
+          }
+          return null;
+        }
+      });
+    }
+
+    if (numWorkers == 1) {
+      try {
+        workers.get(0).call();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+    try {
+      for (Future<Void> result : executor.invokeAll(workers)) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while selecting topic words", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error in topic words thread", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Load saved model, from the binary model file if it is at least as recent as the
+   * word-topic assignment file
    */
   public boolean loadModel() {
+    return loadModel(false);
+  }
+
+  /**
+   * Load saved model; with mapDictionary the dictionary is mapped read-only from the word
+   * map index instead of being read when there is an up-to-date one, see MappedDictionary
+   */
+  public boolean loadModel(boolean mapDictionary) {
+    File binaryFile = new File(dir + File.separator + modelName + binarySuffix);
+    File tassignFile = new File(dir + File.separator + modelName + tassignSuffix);
+    MappedDictionary mapped = mapDictionary ? mapWordMapIndex() : null;
+    if (binaryFile.exists() && binaryFile.lastModified() >= tassignFile.lastModified()) {
+      return readBinaryFile(binaryFile.getPath(), mapped);
+    }
+    return loadTextModel(mapped);
+  }
+
+  /**
+   * the word map index, null if there is none or it is older than the word map
+   */
+  private MappedDictionary mapWordMapIndex() {
+    File indexFile = new File(dir + File.separator + modelName + wordMapIndexSuffix);
+    File wordMapFile = new File(dir + File.separator + modelName + wordMapSuffix);
+    if (!indexFile.exists() || (wordMapFile.exists() && indexFile.lastModified() < wordMapFile.lastModified()))
+      return null;
+    try {
+      return MappedDictionary.open(indexFile.getPath());
+    } catch (IOException e) {
+      System.out.println("Error while mapping word map index, reading the word map: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Load saved model from the gzipped text files
+   */
+  public boolean loadTextModel() {
+    return loadTextModel(null);
+  }
+
+  /**
+   * Load saved model from the gzipped text files, with mapped as dictionary if it is not
+   * null and has the model's number of words
+   */
+  protected boolean loadTextModel(MappedDictionary mapped) {
     if (!readOthersFile(dir + File.separator + modelName + othersSuffix))
       return false;
 
     if (!readTAssignFile(dir + File.separator + modelName + tassignSuffix))
       return false;
 
+    if (mapped != null && mapped.size() == V) {
+      data.setLocalDict(mapped);
+      return true;
+    }
+    if (mapped != null) {
+      System.out.println("The word map index does not match the model, reading the word map");
+    }
+
     // read dictionary
     com.elex.bigdata.jgibblda.Dictionary dict = new com.elex.bigdata.jgibblda.Dictionary();
     if (!dict.readWordMap(dir + File.separator + modelName + wordMapSuffix))
@@ -633,6 +916,37 @@ public class Model {
     return true;
   }
 
+  /**
+   * Load the binary model file
+   */
+  protected boolean readBinaryFile(String binaryFile) {
+    return readBinaryFile(binaryFile, null);
+  }
+
+  /**
+   * Load the binary model file, with mapped as dictionary if it is not null and has the
+   * dictionary size of the file
+   */
+  protected boolean readBinaryFile(String binaryFile, MappedDictionary mapped) {
+    try {
+      BinaryModel binaryModel = BinaryModel.open(binaryFile);
+      try {
+        if (mapped != null && mapped.size() != binaryModel.getDictSize()) {
+          System.out.println("The word map index does not match the model, reading the dictionary");
+          mapped = null;
+        }
+        binaryModel.load(this, mapped);
+      } finally {
+        binaryModel.close();
+      }
+    } catch (Exception e) {
+      System.out.println("Error while loading binary model: " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Load "others" file to get parameters
    */
@@ -683,78 +997,95 @@ public class Model {
    */
   protected boolean readTAssignFile(String tassignFile) {
     try {
-      int i, j;
-      BufferedReader reader = new BufferedReader(new InputStreamReader(
+      int i;
+      LineReader reader = new LineReader(new InputStreamReader(
         new GZIPInputStream(
-          new FileInputStream(tassignFile)), "UTF-8"));
+          new FileInputStream(tassignFile), 1 << 16), "UTF-8"));
 
-      String line;
-      z = new TIntArrayList[M];
+      z = new TopicAssignments(K, M, M);
       data = new LDADataset();
       data.setM(M);
       data.setV(V);
+      TIntArrayList words = new TIntArrayList();
+      TIntArrayList cfs = new TIntArrayList();
+      int[] fields = new int[6]; // start and end of word, cf and topic
       for (i = 0; i < M; i++) {
-        line = reader.readLine();
+        if (!reader.next()) {
+          System.out.println("Missing word-topic assignment lines\n");
+          return false;
+        }
+        char[] buf = reader.getBuffer();
+        int end = reader.getEnd();
         //get uid;the other is word:cf:topic split by " ";
-        String uid = line.substring(0, line.indexOf("\t"));
-        line = line.substring(line.indexOf("\t") + 1);
-        TIntArrayList labels = null;
-        if (line.startsWith("[")) {
-          String[] labelsBoundary = line.
-            substring(1). // remove initial '['
-            split("]", 2); // separate labels and str between ']'
-          String[] labelStrs = labelsBoundary[0].trim().split(",");
-          line = labelsBoundary[1].trim();
+        int tab = LineScanner.indexOf(buf, reader.getStart(), end, '\t');
+        if (tab < 0) {
+          System.out.println("Invalid word-topic assignment line\n");
+          return false;
+        }
+        String uid = new String(buf, reader.getStart(), tab - reader.getStart());
+        int pos = tab + 1;
+        int[] labels = null;
+        if (pos < end && buf[pos] == '[') {
+          int close = LineScanner.indexOf(buf, pos + 1, end, ']');
+          if (close < 0) {
+            System.out.println("Invalid word-topic assignment line\n");
+            return false;
+          }
 
           // parse labels (unless we're ignoring the labels)
           if (!unlabeled) {
-            // store labels in a HashSet to ensure uniqueness
-            TIntHashSet label_set = new TIntHashSet();
-            for (String labelStr : labelStrs) {
-              try {
-                label_set.add(Integer.parseInt(labelStr));
-              } catch (NumberFormatException nfe) {
-                //System.err.println("Unknown document label ( " + labelStr + " ) for document " + i + ".");
-              }
-            }
-            labels = new TIntArrayList(label_set);
-            labels.sort();
+            labels = LineScanner.parseLabels(buf, pos + 1, close);
           }
+          pos = LineScanner.trimStart(buf, close + 1, end);
+          end = LineScanner.trimEnd(buf, pos, end);
         }
 
-        StringTokenizer tknr = new StringTokenizer(line, " ");
-        //orig word:cf:topic is split by "\t"
-        //StringTokenizer tknr = new StringTokenizer(line, " \t\r\n");
-
-        int length = tknr.countTokens();
-
-        TIntArrayList words = new TIntArrayList();
-        TIntArrayList cfs = new TIntArrayList();
-        TIntArrayList topics = new TIntArrayList();
-        for (j = 0; j < length; j++) {
-          String token = tknr.nextToken();
-
-          StringTokenizer tknr2 = new StringTokenizer(token, ":");
-          if (tknr2.countTokens() != 3) {
+        //word:cf:topic items are separated by spaces
+        words.resetQuick();
+        cfs.resetQuick();
+        z.addDocument();
+        while (true) {
+          while (pos < end && buf[pos] == ' ')
+            pos++;
+          if (pos == end)
+            break;
+          int itemEnd = LineScanner.indexOf(buf, pos, end, ' ');
+          if (itemEnd < 0)
+            itemEnd = end;
+
+          // fields are separated by one or more ':'
+          int numFields = 0;
+          for (int f = pos; f < itemEnd && numFields <= 3; ) {
+            if (buf[f] == ':') {
+              f++;
+              continue;
+            }
+            int fieldEnd = LineScanner.indexOf(buf, f, itemEnd, ':');
+            if (fieldEnd < 0)
+              fieldEnd = itemEnd;
+            if (numFields < 3) {
+              fields[2 * numFields] = f;
+              fields[2 * numFields + 1] = fieldEnd;
+            }
+            numFields++;
+            f = fieldEnd;
+          }
+          if (numFields != 3) {
             System.out.println("Invalid word-topic assignment line\n");
             return false;
           }
 
-          words.add(Integer.parseInt(tknr2.nextToken()));
-          cfs.add(Integer.parseInt(tknr2.nextToken()));
-          topics.add(Integer.parseInt(tknr2.nextToken()));
+          words.add(LineScanner.parseIntStrict(buf, fields[0], fields[1]));
+          cfs.add(LineScanner.parseIntStrict(buf, fields[2], fields[3]));
+          z.add(LineScanner.parseIntStrict(buf, fields[4], fields[5]));
+          pos = itemEnd;
         }//end for each topic assignment
 
         //allocate and add new document to the corpus
-        Document doc = new Document(words, cfs, line, labels);
+        Document doc = new Document(words.toArray(), cfs.toArray(), labels);
         data.setDoc(doc, i);
         //set uid-docNum(Order) map
         data.setUidDocNum(uid, i);
-        //assign values for z
-        z[i] = new TIntArrayList();
-        for (j = 0; j < topics.size(); j++) {
-          z[i].add(topics.get(j));
-        }
 
       }//end for each doc
 
@@ -807,6 +1138,38 @@ public class Model {
     Model.twordsSuffix = twordsSuffix;
   }
 
+  public static String getBinarySuffix() {
+    return binarySuffix;
+  }
+
+  public static void setBinarySuffix(String binarySuffix) {
+    Model.binarySuffix = binarySuffix;
+  }
+
+  public static String getCheckpointSuffix() {
+    return checkpointSuffix;
+  }
+
+  public static void setCheckpointSuffix(String checkpointSuffix) {
+    Model.checkpointSuffix = checkpointSuffix;
+  }
+
+  public static String getStateSuffix() {
+    return stateSuffix;
+  }
+
+  public static void setStateSuffix(String stateSuffix) {
+    Model.stateSuffix = stateSuffix;
+  }
+
+  public static String getWordMapIndexSuffix() {
+    return wordMapIndexSuffix;
+  }
+
+  public static void setWordMapIndexSuffix(String wordMapIndexSuffix) {
+    Model.wordMapIndexSuffix = wordMapIndexSuffix;
+  }
+
   public static String getWordMapSuffix() {
     return wordMapSuffix;
   }
@@ -839,6 +1202,38 @@ public class Model {
     this.unlabeled = unlabeled;
   }
 
+  public int getCompression() {
+    return compression;
+  }
+
+  public void setCompression(int compression) {
+    this.compression = compression;
+  }
+
+  public boolean isSparseTheta() {
+    return sparseTheta;
+  }
+
+  public void setSparseTheta(boolean sparseTheta) {
+    this.sparseTheta = sparseTheta;
+  }
+
+  public boolean isWordMapIndex() {
+    return wordMapIndex;
+  }
+
+  public void setWordMapIndex(boolean wordMapIndex) {
+    this.wordMapIndex = wordMapIndex;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  public void setBinary(boolean binary) {
+    this.binary = binary;
+  }
+
   public String getModelName() {
     return modelName;
   }
@@ -935,6 +1330,14 @@ public class Model {
     this.liter = liter;
   }
 
+  public int getConvergedIter() {
+    return convergedIter;
+  }
+
+  public void setConvergedIter(int convergedIter) {
+    this.convergedIter = convergedIter;
+  }
+
   public int getTwords() {
     return twords;
   }
@@ -943,6 +1346,22 @@ public class Model {
     this.twords = twords;
   }
 
+  public long getSeed() {
+    return seed;
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * random generator for stream number stream of this model's seed;
+   * stream 0 is used by init, samplers use the following ones
+   */
+  public FastRandom newRandom(int stream) {
+    return new FastRandom(seed, stream);
+  }
+
   public double[][] getTheta() {
     return theta;
   }
@@ -959,27 +1378,27 @@ public class Model {
     this.phi = phi;
   }
 
-  public TIntArrayList[] getZ() {
+  public TopicAssignments getZ() {
     return z;
   }
 
-  public void setZ(TIntArrayList[] z) {
+  public void setZ(TopicAssignments z) {
     this.z = z;
   }
 
-  public int[][] getNw() {
+  public CountMatrix getNw() {
     return nw;
   }
 
-  public void setNw(int[][] nw) {
+  public void setNw(CountMatrix nw) {
     this.nw = nw;
   }
 
-  public int[][] getNd() {
+  public DocTopicCounts getNd() {
     return nd;
   }
 
-  public void setNd(int[][] nd) {
+  public void setNd(DocTopicCounts nd) {
     this.nd = nd;
   }
 
@@ -1015,6 +1434,10 @@ public class Model {
     this.nwsum_inf = nwsum_inf;
   }
 
+  public LabelGroups getLabelGroups() {
+    return labelGroups;
+  }
+
   public double[] getP() {
     return p;
   }
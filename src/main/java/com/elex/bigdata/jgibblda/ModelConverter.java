@@ -0,0 +1,86 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * -convert: converts the model given by -dir and -model between its gzipped text files
+ * (tassign, others, wordmap) and the binary model file, see BinaryModel. Labels are always
+ * kept, whatever -unlabeled says, and the iteration counters are carried over so a
+ * converted model is saved the same way as the original.
+ */
+public class ModelConverter {
+  public static final String BINARY = "binary";
+  public static final String TEXT = "text";
+
+  public static boolean convert(LDACmdOption option) throws IOException {
+    Model model = new Model(option.dir, option.modelName, false);
+    model.setCompression(GzipTextOutput.level(option.compression));
+    String prefix = model.getDir() + File.separator + model.getModelName();
+
+    if (BINARY.equalsIgnoreCase(option.convert)) {
+      if (!model.loadTextModel())
+        return false;
+      readIterations(model, prefix + Model.getOthersSuffix());
+      if (!model.saveModelBinary(prefix + Model.getBinarySuffix()))
+        return false;
+      System.out.println("Converted " + prefix + " to " + prefix + Model.getBinarySuffix());
+    } else if (TEXT.equalsIgnoreCase(option.convert)) {
+      BinaryModel binaryModel = BinaryModel.open(prefix + Model.getBinarySuffix());
+      try {
+        binaryModel.load(model);
+        model.setLiter(binaryModel.getLiter());
+        model.setConvergedIter(binaryModel.getConvergedIter());
+      } finally {
+        binaryModel.close();
+      }
+      if (!model.saveModelTAssign(prefix + Model.getTassignSuffix()))
+        return false;
+      if (!model.saveModelOthers(prefix + Model.getOthersSuffix()))
+        return false;
+      if (!model.getData().getLocalDict().writeWordMap(prefix + Model.getWordMapSuffix(), model.getCompression()))
+        return false;
+      System.out.println("Converted " + prefix + Model.getBinarySuffix() + " to text files");
+    } else {
+      throw new IllegalArgumentException("Unknown conversion: " + option.convert);
+    }
+    if (option.wordMapIndex) {
+      if (!model.getData().getLocalDict().writeIndex(prefix + Model.getWordMapIndexSuffix()))
+        return false;
+      System.out.println("Wrote " + prefix + Model.getWordMapIndexSuffix());
+    }
+    return true;
+  }
+
+  /**
+   * read the iteration counters from the others file, Model.readOthersFile skips them
+   */
+  private static void readIterations(Model model, String otherFile) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+      new GZIPInputStream(
+        new FileInputStream(otherFile)), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        StringTokenizer tknr = new StringTokenizer(line, "= \t\r\n");
+        if (tknr.countTokens() != 2)
+          continue;
+
+        String optstr = tknr.nextToken();
+        String optval = tknr.nextToken();
+        if (optstr.equalsIgnoreCase("liters")) {
+          model.setLiter(Integer.parseInt(optval));
+        } else if (optstr.equalsIgnoreCase("convergediter")) {
+          model.setConvergedIter(Integer.parseInt(optval));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the Inferencer of the trained model -model of -dir for a long-running process, and
+ * replaces it when a new model is saved there (the daily -estc) without stopping inference.
+ * The new model is loaded on a background thread next to the current one, validated, and
+ * swapped in with a single reference write: callers take get() once per request, so a request
+ * in flight finishes against the model it started with, and getting the model takes no lock.
+ * A model that fails to load or to validate is logged and the current one is kept.
+ *
+ * With watch() the registry polls the files of the model and reloads once they changed and
+ * then stayed unchanged for a whole interval, as the files of a model are written in place
+ * one after the other. The process holds both models while the new one loads.
+ */
+public class ModelRegistry {
+  private LDACmdOption option;
+  private AtomicReference<Inferencer> current = new AtomicReference<Inferencer>();
+  private volatile int version = 1;
+  private String loaded;          // stamp of the model files that were last loaded or rejected
+  private String changed = null;  // stamp of changed model files waiting to settle
+  private ScheduledExecutorService loader;
+
+  /**
+   * load the trained model of option
+   */
+  public ModelRegistry(LDACmdOption option) throws IOException {
+    this.option = option;
+    loaded = stamp();
+    current.set(new Inferencer(option, Inferencer.loadTrainedModel(option)));
+    loader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "model loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * the inferencer of the current model
+   */
+  public Inferencer get() {
+    return current.get();
+  }
+
+  /**
+   * number of models loaded, 1 for the first
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * poll the model files every interval seconds and reload when they changed
+   */
+  public void watch(long interval) {
+    loader.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          poll();
+        } catch (Throwable e) {
+          // the next poll tries again
+          System.out.println("Error while polling model files: " + e);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * reload the model on the loader thread and return without waiting for it
+   */
+  public void reloadLater() {
+    loader.execute(new Runnable() {
+      public void run() {
+        reload();
+      }
+    });
+  }
+
+  /**
+   * stop watching the model files
+   */
+  public void close() {
+    loader.shutdownNow();
+  }
+
+  private synchronized void poll() {
+    String files = stamp();
+    if (files.equals(loaded)) {
+      changed = null;
+    } else if (!files.equals(changed)) {
+      // still being written maybe, wait for another interval
+      changed = files;
+    } else {
+      changed = null;
+      reload();
+    }
+  }
+
+  /**
+   * load the model files as they are now, validate the model and swap it in
+   * @return whether the new model is in use
+   */
+  public synchronized boolean reload() {
+    String files = stamp();
+    System.out.println("Loading model " + option.modelName + " from " + option.dir);
+    Model model;
+    try {
+      model = Inferencer.loadTrainedModel(option);
+    } catch (Exception e) {
+      System.out.println("Error while loading model, keeping version " + version + ": " + e.getMessage());
+      e.printStackTrace();
+      model = null;
+    }
+    if (!stamp().equals(files)) {
+      // retried once the files settle
+      System.out.println("The model files changed while loading, keeping version " + version);
+      return false;
+    }
+    // not retried until the files change again
+    loaded = files;
+    if (model == null)
+      return false;
+
+    String error = validate(model, current.get().getTrainedModel());
+    if (error != null) {
+      System.out.println("Rejected model: " + error + ", keeping version " + version);
+      return false;
+    }
+    current.set(new Inferencer(option, model));
+    version++;
+    System.out.println("Model version " + version + " in use: M = " + model.getM() + ", V = " + model.getV());
+    return true;
+  }
+
+  /**
+   * why model cannot replace previous, null if it can
+   */
+  static String validate(Model model, Model previous) {
+    if (model.getK() != previous.getK())
+      return "the number of topics changed from " + previous.getK() + " to " + model.getK();
+    if (model.getM() <= 0 || model.getV() <= 0)
+      return "the model has no documents or no words";
+    if (model.getData().getLocalDict().size() != model.getV())
+      return "the dictionary has " + model.getData().getLocalDict().size() + " words, the model " + model.getV();
+    long tokens = 0;
+    for (int count : model.getNwsum()) {
+      if (count < 0)
+        return "negative topic counts";
+      tokens += count;
+    }
+    if (tokens == 0)
+      return "the model has no topic assignments";
+    return null;
+  }
+
+  // last modification times and lengths of the files a model is loaded from
+  private String stamp() {
+    String prefix = option.dir + File.separator + option.modelName;
+    StringBuilder stamp = new StringBuilder();
+    for (String suffix : new String[] {Model.getBinarySuffix(), Model.getTassignSuffix(),
+      Model.getOthersSuffix(), Model.getWordMapSuffix(), Model.getWordMapIndexSuffix()}) {
+      File file = new File(prefix + suffix);
+      stamp.append(file.lastModified()).append(':').append(file.length()).append(' ');
+    }
+    return stamp.toString();
+  }
+}
@@ -0,0 +1,134 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pipelined LDADataset.readDataSet for -nthreads > 1. A reader thread inflates and decodes
+ * the file and copies it into blocks of lines, a pool of workers parses the blocks
+ * (LDADataset.parseDoc) and the calling thread adds the parsed documents block by block in
+ * file order (LDADataset.addDoc), so dictionary ids and document numbers are exactly those of
+ * the serial reader. The queue between the reader and the calling thread is bounded, which
+ * keeps the number of blocks in memory at a few per worker.
+ */
+public class ParallelDatasetReader {
+  private static final int BLOCK_LINES = 1024; // lines per parse task
+
+  // lines lineStarts[i]..lineStarts[i+1]-1 of chars
+  private static class Block {
+    char[] chars = new char[1 << 16];
+    int[] lineStarts = new int[BLOCK_LINES + 1];
+    int numLines = 0;
+
+    void add(char[] buf, int start, int end) {
+      int from = lineStarts[numLines];
+      int length = end - start;
+      if (from + length > chars.length) {
+        chars = Arrays.copyOf(chars, Math.max(2 * chars.length, from + length));
+      }
+      System.arraycopy(buf, start, chars, from, length);
+      lineStarts[++numLines] = from + length;
+    }
+  }
+
+  // the block queued after the last one
+  private static final Callable<List<LDADataset.ParsedDoc>> END = new Callable<List<LDADataset.ParsedDoc>>() {
+    public List<LDADataset.ParsedDoc> call() {
+      return null;
+    }
+  };
+
+  public static void read(final LDADataset data, final LineReader reader, final boolean unlabeled,
+                          int nthreads) throws IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+    final BlockingQueue<Future<List<LDADataset.ParsedDoc>>> blocks =
+      new ArrayBlockingQueue<Future<List<LDADataset.ParsedDoc>>>(4 * nthreads);
+    final ThreadLocal<LineScanner> scanners = new ThreadLocal<LineScanner>() {
+      protected LineScanner initialValue() {
+        return new LineScanner();
+      }
+    };
+
+    Thread inflater = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Block block = new Block();
+          while (reader.next()) {
+            block.add(reader.getBuffer(), reader.getStart(), reader.getEnd());
+            if (block.numLines == BLOCK_LINES) {
+              blocks.put(executor.submit(parseTask(data, block, scanners, unlabeled)));
+              block = new Block();
+            }
+          }
+          if (block.numLines > 0) {
+            blocks.put(executor.submit(parseTask(data, block, scanners, unlabeled)));
+          }
+          blocks.put(executor.submit(END));
+        } catch (InterruptedException e) {
+          // the calling thread has given up
+        } catch (final Exception e) {
+          // hand the error over to the calling thread
+          try {
+            blocks.put(executor.submit(new Callable<List<LDADataset.ParsedDoc>>() {
+              public List<LDADataset.ParsedDoc> call() throws Exception {
+                throw e;
+              }
+            }));
+          } catch (InterruptedException ie) {
+            // the calling thread has given up
+          }
+        }
+      }
+    }, "dataset-reader");
+    inflater.setDaemon(true);
+    inflater.start();
+
+    try {
+      while (true) {
+        List<LDADataset.ParsedDoc> docs = blocks.take().get();
+        if (docs == null)
+          break;
+        for (LDADataset.ParsedDoc doc : docs) {
+          data.addDoc(doc);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while reading dataset", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new RuntimeException("Error in dataset parsing thread", e.getCause());
+    } finally {
+      inflater.interrupt();
+      executor.shutdownNow();
+    }
+  }
+
+  private static Callable<List<LDADataset.ParsedDoc>> parseTask(final LDADataset data, final Block block,
+                                                                final ThreadLocal<LineScanner> scanners,
+                                                                final boolean unlabeled) {
+    return new Callable<List<LDADataset.ParsedDoc>>() {
+      public List<LDADataset.ParsedDoc> call() {
+        LineScanner scanner = scanners.get();
+        List<LDADataset.ParsedDoc> docs = new ArrayList<LDADataset.ParsedDoc>(block.numLines);
+        for (int i = 0; i < block.numLines; i++) {
+          LDADataset.ParsedDoc doc = data.parseDoc(scanner, block.chars, block.lineStarts[i],
+            block.lineStarts[i + 1], unlabeled);
+          if (doc != null)
+            docs.add(doc);
+        }
+        return docs;
+      }
+    };
+  }
+}
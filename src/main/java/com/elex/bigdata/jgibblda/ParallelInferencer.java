@@ -0,0 +1,84 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded inference with -infseparately. Every document is sampled against its own
+ * nw_inf/nwsum_inf and the read-only trained counts, so documents are independent: they are
+ * split into contiguous ranges of roughly equal token mass and each worker samples its range
+ * with its own InfSampler (and so its own scratch buffers). Documents draw from per-document
+ * random streams, see Inferencer.sampleDocument, so the result does not depend on -nthreads.
+ */
+public class ParallelInferencer {
+  private Inferencer inferencer;
+  private ExecutorService executor;
+
+  private int numWorkers;
+  private int[] docStarts;       // docStarts[i]..docStarts[i+1]-1 are the documents of worker i
+  private InfSampler[] samplers; // samplers[i]: worker i's sampler
+
+  public ParallelInferencer(Inferencer inferencer, Model newModel, int nthreads) {
+    this.inferencer = inferencer;
+
+    docStarts = ParallelSampler.partition(newModel.getData(), newModel.getM(), nthreads);
+    numWorkers = docStarts.length - 1;
+
+    samplers = new InfSampler[numWorkers];
+    for (int i = 0; i < numWorkers; i++) {
+      samplers[i] = inferencer.newSampler(newModel.newRandom(2 + i));
+    }
+
+    executor = Executors.newFixedThreadPool(numWorkers);
+  }
+
+  /**
+   * one sweep over all documents
+   * @param liter iteration number
+   * @return number of words whose topic changed
+   */
+  public long sweep(final int liter) {
+    List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+    for (int i = 0; i < numWorkers; i++) {
+      final int worker = i;
+      tasks.add(new Callable<Long>() {
+        public Long call() {
+          InfSampler sampler = samplers[worker];
+          sampler.prepare();
+          long changed = 0;
+          for (int m = docStarts[worker]; m < docStarts[worker + 1]; m++) {
+            changed += inferencer.sampleDocument(sampler, m, liter);
+          }
+          sampler.finish();
+          return changed;
+        }
+      });
+    }
+
+    long changed = 0;
+    try {
+      for (Future<Long> future : executor.invokeAll(tasks)) {
+        changed += future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while sampling", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error in sampling thread", e.getCause());
+    }
+    return changed;
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public int getNumWorkers() {
+    return numWorkers;
+  }
+}
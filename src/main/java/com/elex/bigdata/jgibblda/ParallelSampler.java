@@ -0,0 +1,233 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Approximate distributed (AD-LDA) Gibbs sampling for Estimator.
+ * Documents are split into contiguous partitions of roughly equal token mass. During a sweep
+ * each worker samples its partition against a private copy of nw/nwsum; nd/ndsum and z are
+ * only touched for the worker's own documents so they are updated in place. At the end of the
+ * sweep the per-worker deltas are merged into the model counts and the copies are re-synced;
+ * a worker's sampler is told about every row of its copy that the merge changed.
+ */
+public class ParallelSampler {
+  private Estimator estimator;
+  private Model trnModel;
+  private ExecutorService executor;
+
+  private int numWorkers;
+  private int[] docStarts;   // docStarts[i]..docStarts[i+1]-1 are the documents of worker i
+  private CountMatrix[] localNw; // localNw[i]: worker i's copy of nw, size V x K
+  private int[][] localNwsum; // localNwsum[i]: worker i's copy of nwsum, size K
+  private Sampler[] samplers; // samplers[i]: worker i's sampler over its local counts
+
+  public ParallelSampler(Estimator estimator, Model trnModel, int nthreads) {
+    this.estimator = estimator;
+    this.trnModel = trnModel;
+
+    docStarts = partition(trnModel.getData(), trnModel.getM(), nthreads);
+    numWorkers = docStarts.length - 1;
+
+    int V = trnModel.getV();
+    int K = trnModel.getK();
+    localNw = new CountMatrix[numWorkers];
+    localNwsum = new int[numWorkers][K];
+    samplers = new Sampler[numWorkers];
+    for (int i = 0; i < numWorkers; i++) {
+      localNw[i] = new CountMatrix(V, K);
+      copyCounts(i);
+      // stream 1 belongs to the serial sampler, workers take the following ones
+      samplers[i] = estimator.newSampler(localNw[i], localNwsum[i], trnModel.newRandom(2 + i));
+    }
+
+    executor = Executors.newFixedThreadPool(numWorkers);
+  }
+
+  /**
+   * split the first M documents of data into at most nthreads contiguous ranges with a balanced
+   * number of tokens
+   * @return range starts, range i is starts[i]..starts[i+1]-1
+   */
+  static int[] partition(LDADataset data, int M, int nthreads) {
+    nthreads = Math.max(1, Math.min(nthreads, M));
+    long totalTokens = 0;
+    for (int m = 0; m < M; m++) {
+      totalTokens += data.getDocs().get(m).getLength();
+    }
+
+    TIntArrayList starts = new TIntArrayList();
+    starts.add(0);
+    long tokens = 0;
+    for (int m = 0; m < M && starts.size() < nthreads; m++) {
+      tokens += data.getDocs().get(m).getLength();
+      if (tokens * nthreads >= totalTokens * starts.size() && m + 1 < M) {
+        starts.add(m + 1);
+      }
+    }
+    starts.add(M);
+    return starts.toArray();
+  }
+
+  /**
+   * one Gibbs sweep over all documents followed by count reconciliation
+   * @return number of tokens whose topic changed
+   */
+  public long sweep() {
+    List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+    for (int i = 0; i < numWorkers; i++) {
+      final int worker = i;
+      tasks.add(new Callable<Long>() {
+        public Long call() {
+          return sampleDocs(worker);
+        }
+      });
+    }
+    long changed = runAll(tasks);
+
+    reconcile();
+    return changed;
+  }
+
+  private long sampleDocs(int worker) {
+    Sampler sampler = samplers[worker];
+    sampler.prepare();
+    long changed = 0;
+    for (int m = docStarts[worker]; m < docStarts[worker + 1]; m++) {
+      int N = trnModel.getData().getDocs().get(m).getLength();
+      for (int n = 0; n < N; n++) {
+        int topic = sampler.sample(m, n);
+        if (topic != trnModel.getZ().get(m, n))
+          changed++;
+        trnModel.getZ().set(m, n, topic);
+      }
+    }
+    sampler.finish();
+    return changed;
+  }
+
+  /**
+   * nw += sum_i (localNw[i] - nw), then copy the merged counts back to every worker.
+   * Word rows are split across the pool so the merge itself runs in parallel.
+   */
+  private void reconcile() {
+    final int V = trnModel.getV();
+    List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+    for (int i = 0; i < numWorkers; i++) {
+      final int from = (int) ((long) V * i / numWorkers);
+      final int to = (int) ((long) V * (i + 1) / numWorkers);
+      tasks.add(new Callable<Long>() {
+        public Long call() {
+          mergeRows(from, to);
+          return 0L;
+        }
+      });
+    }
+    runAll(tasks);
+
+    int[] nwsum = trnModel.getNwsum();
+    int K = trnModel.getK();
+    for (int k = 0; k < K; k++) {
+      int delta = 0;
+      for (int i = 0; i < numWorkers; i++) {
+        delta += localNwsum[i][k] - nwsum[k];
+      }
+      nwsum[k] += delta;
+    }
+    for (int i = 0; i < numWorkers; i++) {
+      System.arraycopy(nwsum, 0, localNwsum[i], 0, K);
+    }
+  }
+
+  private void mergeRows(int from, int to) {
+    CountMatrix nw = trnModel.getNw();
+    int K = trnModel.getK();
+    int[][] local = new int[numWorkers][];
+    int w = from;
+    while (w < to) {
+      // all copies have the same shape, so rows w..next-1 are one flat range in every page
+      int[] page = nw.page(w);
+      int start = nw.offset(w);
+      int next = Math.min(to, nw.pageEnd(w));
+      int end = start + (next - w) * K;
+      for (int i = 0; i < numWorkers; i++) {
+        local[i] = localNw[i].page(w);
+      }
+
+      for (int j = start; j < end; j++) {
+        int delta = 0;
+        for (int i = 0; i < numWorkers; i++) {
+          delta += local[i][j] - page[j];
+        }
+        page[j] += delta;
+      }
+      for (int i = 0; i < numWorkers; i++) {
+        for (int row = w, j = start; row < next; row++, j += K) {
+          if (!sameRow(page, local[i], j, K)) {
+            System.arraycopy(page, j, local[i], j, K);
+            samplers[i].refreshRow(row);
+          }
+        }
+      }
+      w = next;
+    }
+  }
+
+  private static boolean sameRow(int[] a, int[] b, int off, int K) {
+    for (int k = off; k < off + K; k++) {
+      if (a[k] != b[k])
+        return false;
+    }
+    return true;
+  }
+
+  Sampler getSampler(int worker) {
+    return samplers[worker];
+  }
+
+  private void copyCounts(int worker) {
+    CountMatrix nw = trnModel.getNw();
+    localNw[worker].copyRows(nw, 0, nw.getRows());
+    System.arraycopy(trnModel.getNwsum(), 0, localNwsum[worker], 0, trnModel.getK());
+  }
+
+  /**
+   * run tasks on the pool and add up their results
+   */
+  private long runAll(List<Callable<Long>> tasks) {
+    long sum = 0;
+    try {
+      for (Future<Long> future : executor.invokeAll(tasks)) {
+        sum += future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while sampling", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error in sampling thread", e.getCause());
+    }
+    return sum;
+  }
+
+  /**
+   * random generator of worker i, it draws from stream 2 + i of the model's seed
+   */
+  public FastRandom getRandom(int worker) {
+    return samplers[worker].getRandom();
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public int getNumWorkers() {
+    return numWorkers;
+  }
+}
@@ -0,0 +1,72 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Sampling kernel used by Estimator. A sampler draws z_i for one token against a given set of
+ * word-topic counts (the model's own or a worker's local copy, see ParallelSampler) and updates
+ * nd/ndsum of the model in place, nd through its own DocTopicCounts.Cursor.
+ */
+public abstract class Sampler {
+  public static final String GIBBS = "gibbs";
+  public static final String SPARSE = "sparse";
+  public static final String ALIAS = "alias";
+
+  protected Model model;
+  protected CountMatrix nw;
+  protected int[] nwsum;
+  protected FastRandom random;
+  protected DocTopicCounts.Cursor ndRow; // nd of the document being sampled
+
+  protected Sampler(Model model, CountMatrix nw, int[] nwsum, FastRandom random) {
+    this.model = model;
+    this.nw = nw;
+    this.nwsum = nwsum;
+    this.random = random;
+    ndRow = model.getNd().cursor();
+  }
+
+  /**
+   * create the sampler selected by -sampler
+   */
+  public static Sampler create(LDACmdOption option, Model model, CountMatrix nw, int[] nwsum, FastRandom random) {
+    if (GIBBS.equalsIgnoreCase(option.sampler)) {
+      return new GibbsSampler(model, nw, nwsum, random);
+    } else if (SPARSE.equalsIgnoreCase(option.sampler)) {
+      return new SparseGibbsSampler(model, nw, nwsum, random);
+    } else if (ALIAS.equalsIgnoreCase(option.sampler)) {
+      return new AliasSampler(model, nw, nwsum, random, option.mhSteps, option.aliasRefresh);
+    }
+    throw new IllegalArgumentException("Unknown sampler: " + option.sampler);
+  }
+
+  /**
+   * called before every sweep, after nw/nwsum have been (re)synchronized
+   */
+  public void prepare() {
+  }
+
+  /**
+   * called between sweeps when row w of nw was changed from outside the sampler, as
+   * ParallelSampler does when it merges the counts of the workers
+   */
+  public void refreshRow(int w) {
+  }
+
+  /**
+   * called after every sweep, stores the counts of the last document sampled
+   */
+  public void finish() {
+    ndRow.close();
+  }
+
+  /**
+   * Do sampling
+   * @param m document number
+   * @param n word number
+   * @return topic id
+   */
+  public abstract int sample(int m, int n);
+
+  public FastRandom getRandom() {
+    return random;
+  }
+}
@@ -0,0 +1,225 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * SparseLDA sampler (Yao, Mimno and McCallum 2009). The unnormalized topic weight
+ * <pre>
+ *   (nd + alpha)(nw + beta)/(nwsum + Vbeta)
+ *     = alpha*beta/(nwsum + Vbeta)        smoothing bucket s, cached over the corpus
+ *     + nd*beta/(nwsum + Vbeta)           document bucket r, only topics with nd[m][k] > 0
+ *     + (nd + alpha)*nw/(nwsum + Vbeta)   word bucket q, only topics with nw[w][k] > 0
+ * </pre>
+ * s, r and the per-topic coefficients (nd + alpha)/(nwsum + Vbeta) are updated incrementally
+ * as counts change, so a token costs O(non-zero topics of its document and word) instead of O(K).
+ * Labelled documents only have a few possible topics and are sampled by LabelKernel.
+ */
+public class SparseGibbsSampler extends Sampler {
+  private int K;
+  private double alpha;
+  private double beta;
+  private double Vbeta;
+
+  private double s;        // smoothing bucket mass
+  private double r;        // document bucket mass of the current document
+  private double[] invDen; // 1 / (nwsum[k] + Vbeta)
+  private double[] coef;   // (nd[m][k] + alpha) / (nwsum[k] + Vbeta) for the current document
+
+  private TopicIndex wordTopics;  // non-zero topics of every nw row, kept up to date by update()
+  private boolean indexed = false; // whether wordTopics was built
+  private int[] docTopics;        // non-zero topics of nd[m] for the current document
+  private int[] docTopicPos;      // position of a topic in docTopics, -1 if absent
+  private int docTopicSize = 0;
+  private int currentDoc = -1;
+
+  private LabelKernel labelKernel;
+
+  // temp variables for sampling
+  private double[] p;
+
+  public SparseGibbsSampler(Model model, CountMatrix nw, int[] nwsum, FastRandom random) {
+    super(model, nw, nwsum, random);
+    K = model.getK();
+    alpha = model.getAlpha();
+    beta = model.getBeta();
+    Vbeta = model.getV() * beta;
+
+    invDen = new double[K];
+    coef = new double[K];
+    wordTopics = new TopicIndex(nw.getRows());
+    docTopics = new int[K];
+    docTopicPos = new int[K];
+    p = new double[K];
+    labelKernel = new LabelKernel(model.getLabelGroups(), K, alpha, beta);
+  }
+
+  public void prepare() {
+    s = 0;
+    for (int k = 0; k < K; k++) {
+      invDen[k] = 1.0 / (nwsum[k] + Vbeta);
+      coef[k] = alpha * invDen[k];
+      s += alpha * beta * invDen[k];
+      docTopicPos[k] = -1;
+      labelKernel.setDenominator(k, nwsum[k] + Vbeta);
+    }
+    docTopicSize = 0;
+    currentDoc = -1;
+    if (!indexed) {
+      wordTopics.build(nw, K);
+      indexed = true;
+    }
+  }
+
+  public void refreshRow(int w) {
+    if (indexed)
+      wordTopics.rebuild(w, nw, K);
+  }
+
+  TopicIndex getWordTopics() {
+    return wordTopics;
+  }
+
+  public int sample(int m, int n) {
+    if (m != currentDoc) {
+      beginDocument(m);
+    }
+
+    Document doc = model.getData().getDocs().get(m);
+    int topic = model.getZ().get(m, n);
+    int w = doc.getWords()[n];
+    int cf = doc.getCfs()[n];
+
+    // remove z_i from the count variables
+    update(m, w, topic, -cf);
+
+    int group = model.getLabelGroups().getGroup(m);
+    if (group >= 0) {
+      topic = labelKernel.sample(group, ndRow.page(), ndRow.offset(), nw.page(w), nw.offset(w), random.nextDouble());
+    } else {
+      topic = sampleBuckets(m, w);
+    }
+
+    // add newly estimated z_i to count variables
+    update(m, w, topic, cf);
+
+    return topic;
+  }
+
+  private int sampleBuckets(int m, int w) {
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+    int[] nwPage = nw.page(w);
+    int nwOff = nw.offset(w);
+
+    // word bucket: only topics where nw[w][k] > 0
+    int[] wTopics = wordTopics.topics(w);
+    int wSize = wordTopics.size(w);
+    double q = 0;
+    for (int i = 0; i < wSize; i++) {
+      p[i] = coef[wTopics[i]] * nwPage[nwOff + wTopics[i]];
+      q += p[i];
+    }
+
+    double u = random.nextDouble() * (s + r + q);
+
+    if (u < q) {
+      for (int i = 0; i < wSize; i++) {
+        u -= p[i];
+        if (u <= 0)
+          return wTopics[i];
+      }
+      return wTopics[wSize - 1];
+    }
+    u -= q;
+
+    if (u < r) {
+      int topic = docTopics[0];
+      for (int i = 0; i < docTopicSize; i++) {
+        topic = docTopics[i];
+        u -= ndPage[ndOff + topic] * beta * invDen[topic];
+        if (u <= 0)
+          break;
+      }
+      return topic;
+    }
+    u -= r;
+
+    // smoothing bucket: rarely reached, scan all topics
+    for (int k = 0; k < K; k++) {
+      u -= alpha * beta * invDen[k];
+      if (u <= 0)
+        return k;
+    }
+    return K - 1;
+  }
+
+  /**
+   * reset the coefficients of the previous document and collect the non-zero topics of doc m
+   */
+  private void beginDocument(int m) {
+    for (int i = 0; i < docTopicSize; i++) {
+      int topic = docTopics[i];
+      coef[topic] = alpha * invDen[topic];
+      docTopicPos[topic] = -1;
+    }
+    docTopicSize = 0;
+
+    // (re)load the document so its stored non-zero topics are current
+    ndRow.close();
+    ndRow.open(m);
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+    r = 0;
+    docTopicSize = ndRow.nonZero(docTopics);
+    for (int i = 0; i < docTopicSize; i++) {
+      int k = docTopics[i];
+      int count = ndPage[ndOff + k];
+      docTopicPos[k] = i;
+      coef[k] = (count + alpha) * invDen[k];
+      r += count * beta * invDen[k];
+    }
+    currentDoc = m;
+  }
+
+  /**
+   * add delta to the counts of (m, w, topic) and refresh the cached bucket terms of topic
+   */
+  private void update(int m, int w, int topic, int delta) {
+    int[] ndPage = ndRow.page();
+    int nd_i = ndRow.offset() + topic;
+    int[] nwPage = nw.page(w);
+    int nw_i = nw.offset(w) + topic;
+
+    s -= alpha * beta * invDen[topic];
+    r -= ndPage[nd_i] * beta * invDen[topic];
+
+    boolean wasInDoc = ndPage[nd_i] != 0;
+    boolean wasInWord = nwPage[nw_i] != 0;
+
+    ndPage[nd_i] += delta;
+    nwPage[nw_i] += delta;
+    nwsum[topic] += delta;
+    model.getNdsum()[m] += delta;
+
+    invDen[topic] = 1.0 / (nwsum[topic] + Vbeta);
+    labelKernel.setDenominator(topic, nwsum[topic] + Vbeta);
+    s += alpha * beta * invDen[topic];
+    r += ndPage[nd_i] * beta * invDen[topic];
+    coef[topic] = (ndPage[nd_i] + alpha) * invDen[topic];
+
+    if (wasInDoc && ndPage[nd_i] == 0) {
+      int pos = docTopicPos[topic];
+      int last = docTopics[--docTopicSize];
+      docTopics[pos] = last;
+      docTopicPos[last] = pos;
+      docTopicPos[topic] = -1;
+    } else if (!wasInDoc && ndPage[nd_i] != 0) {
+      docTopicPos[topic] = docTopicSize;
+      docTopics[docTopicSize++] = topic;
+    }
+
+    if (wasInWord && nwPage[nw_i] == 0) {
+      wordTopics.remove(w, topic);
+    } else if (!wasInWord && nwPage[nw_i] != 0) {
+      wordTopics.add(w, topic);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * SparseLDA sampler for inference, see SparseGibbsSampler for the bucket decomposition.
+ * The word count of topic k is the trained count plus the count of the new data, which is
+ * either corpus-wide (newModel.nw) or, with -infseparately, local to the document (nw_inf).
+ * The word bucket visits the non-zero trained topics of the word plus the topics that only
+ * the new data has assigned to it. Labelled documents are sampled by LabelKernel.
+ */
+public class SparseInfSampler extends InfSampler {
+  private int K;
+  private double alpha;
+  private double beta;
+  private double Vbeta;
+
+  private double s;        // smoothing bucket mass
+  private double r;        // document bucket mass of the current document
+  private double[] invDen; // 1 / (trained nwsum[k] + new nwsum[k] + Vbeta)
+  private double[] coef;   // (nd[m][k] + alpha) / (trained nwsum[k] + new nwsum[k] + Vbeta)
+
+  private TopicIndex wordTopics;    // non-zero topics of newModel.nw rows, not used with -infseparately
+  private boolean indexed = false;  // whether wordTopics was built, update() keeps it up to date
+  private int[] docTopics;          // non-zero topics of nd[m] for the current document
+  private int[] docTopicPos;        // position of a topic in docTopics, -1 if absent
+  private int docTopicSize = 0;
+  private int currentDoc = -1;
+
+  private LabelKernel labelKernel;
+
+  // temp variables for sampling
+  private double[] p;
+  private int[] pTopics;
+
+  public SparseInfSampler(Model newModel, TrainedCounts trained, boolean separately, FastRandom random) {
+    super(newModel, trained, separately, random);
+
+    K = newModel.getK();
+    alpha = newModel.getAlpha();
+    beta = newModel.getBeta();
+    Vbeta = trained.getVbeta();
+
+    invDen = new double[K];
+    coef = new double[K];
+    docTopics = new int[K];
+    docTopicPos = new int[K];
+    p = new double[K];
+    pTopics = new int[K];
+    labelKernel = new LabelKernel(newModel.getLabelGroups(), K, alpha, beta);
+
+    if (!separately) {
+      wordTopics = new TopicIndex(newModel.getV());
+    }
+  }
+
+  public void prepare() {
+    for (int k = 0; k < K; k++) {
+      docTopicPos[k] = -1;
+    }
+    docTopicSize = 0;
+    currentDoc = -1;
+
+    if (!separately) {
+      int[] trnNwsum = trained.getNwsum();
+      int[] nwsum = newModel.getNwsum();
+      s = 0;
+      for (int k = 0; k < K; k++) {
+        invDen[k] = 1.0 / (trnNwsum[k] + nwsum[k] + Vbeta);
+        coef[k] = alpha * invDen[k];
+        s += alpha * beta * invDen[k];
+        labelKernel.setDenominator(k, trnNwsum[k] + nwsum[k] + Vbeta);
+      }
+      if (!indexed) {
+        wordTopics.build(newModel.getNw(), K);
+        indexed = true;
+      }
+    }
+  }
+
+  public int sample(int m, int n) {
+    if (m != currentDoc) {
+      beginDocument(m);
+    }
+
+    Document doc = newModel.getData().getDocs().get(m);
+    int topic = newModel.getZ().get(m, n);
+    int _w = doc.getWords()[n];
+    int cf = doc.getCfs()[n];
+
+    // the new word counts, (array, offset) of either nw_inf[m][_w] or newModel.nw
+    int[] nwPage;
+    int nwOff;
+    if (separately) {
+      nwPage = newModel.getNw_inf().get(m).get(_w);
+      nwOff = 0;
+    } else {
+      nwPage = newModel.getNw().page(_w);
+      nwOff = newModel.getNw().offset(_w);
+    }
+
+    // remove z_i from the count variables
+    update(m, _w, nwPage, nwOff, topic, -cf);
+
+    int group = newModel.getLabelGroups().getGroup(m);
+    if (group >= 0) {
+      CountMatrix trnNw = trained.getNw();
+      if (separately) {
+        topic = labelKernel.sample(group, ndRow.page(), ndRow.offset(), trnNw.page(_w), trnNw.offset(_w),
+          nwPage, nwOff, trained.getNwsum(), newModel.getNwsum_inf()[m], Vbeta, random.nextDouble());
+      } else {
+        topic = labelKernel.sample(group, ndRow.page(), ndRow.offset(), trnNw.page(_w), trnNw.offset(_w),
+          nwPage, nwOff, random.nextDouble());
+      }
+    } else {
+      topic = sampleBuckets(m, _w, nwPage, nwOff);
+    }
+
+    // add newly estimated z_i to count variables
+    update(m, _w, nwPage, nwOff, topic, cf);
+
+    return topic;
+  }
+
+  private int sampleBuckets(int m, int _w, int[] nwPage, int nwOff) {
+    int[] trnNwPage = trained.getNw().page(_w);
+    int trnNwOff = trained.getNw().offset(_w);
+    TopicIndex trnWordTopics = trained.getTopics();
+    int size = 0;
+    double q = 0;
+
+    // word bucket: trained topics of the word ...
+    int[] topics = trnWordTopics.topics(_w);
+    for (int i = 0; i < trnWordTopics.size(_w); i++) {
+      int k = topics[i];
+      pTopics[size] = k;
+      p[size] = coef[k] * (trnNwPage[trnNwOff + k] + nwPage[nwOff + k]);
+      q += p[size++];
+    }
+    // ... plus topics only assigned to it by the new data. With -infseparately the
+    // new counts of a word are within the document, so they are among its topics
+    if (separately) {
+      topics = docTopics;
+    } else {
+      topics = wordTopics.topics(_w);
+    }
+    int extra = separately ? docTopicSize : wordTopics.size(_w);
+    for (int i = 0; i < extra; i++) {
+      int k = topics[i];
+      if (trnNwPage[trnNwOff + k] == 0 && nwPage[nwOff + k] != 0) {
+        pTopics[size] = k;
+        p[size] = coef[k] * nwPage[nwOff + k];
+        q += p[size++];
+      }
+    }
+
+    double u = random.nextDouble() * (s + r + q);
+
+    if (u < q) {
+      for (int i = 0; i < size; i++) {
+        u -= p[i];
+        if (u <= 0)
+          return pTopics[i];
+      }
+      return pTopics[size - 1];
+    }
+    u -= q;
+
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+    if (u < r) {
+      int topic = docTopics[0];
+      for (int i = 0; i < docTopicSize; i++) {
+        topic = docTopics[i];
+        u -= ndPage[ndOff + topic] * beta * invDen[topic];
+        if (u <= 0)
+          break;
+      }
+      return topic;
+    }
+    u -= r;
+
+    // smoothing bucket: rarely reached, scan all topics
+    for (int k = 0; k < K; k++) {
+      u -= alpha * beta * invDen[k];
+      if (u <= 0)
+        return k;
+    }
+    return K - 1;
+  }
+
+  private void beginDocument(int m) {
+    for (int i = 0; i < docTopicSize; i++) {
+      int topic = docTopics[i];
+      coef[topic] = alpha * invDen[topic];
+      docTopicPos[topic] = -1;
+    }
+    docTopicSize = 0;
+
+    if (separately) {
+      // denominators depend on the document's own counts
+      int[] trnNwsum = trained.getNwsum();
+      int[] nwsum_m = newModel.getNwsum_inf()[m];
+      s = 0;
+      for (int k = 0; k < K; k++) {
+        invDen[k] = 1.0 / (trnNwsum[k] + nwsum_m[k] + Vbeta);
+        coef[k] = alpha * invDen[k];
+        s += alpha * beta * invDen[k];
+      }
+    }
+
+    // (re)load the document so its stored non-zero topics are current
+    ndRow.close();
+    ndRow.open(m);
+    int[] ndPage = ndRow.page();
+    int ndOff = ndRow.offset();
+    r = 0;
+    docTopicSize = ndRow.nonZero(docTopics);
+    for (int i = 0; i < docTopicSize; i++) {
+      int k = docTopics[i];
+      int count = ndPage[ndOff + k];
+      docTopicPos[k] = i;
+      coef[k] = (count + alpha) * invDen[k];
+      r += count * beta * invDen[k];
+    }
+    currentDoc = m;
+  }
+
+  /**
+   * add delta to the counts of (m, _w, topic) and refresh the cached bucket terms of topic
+   */
+  private void update(int m, int _w, int[] nwPage, int nwOff, int topic, int delta) {
+    int[] ndPage = ndRow.page();
+    int nd_i = ndRow.offset() + topic;
+
+    s -= alpha * beta * invDen[topic];
+    r -= ndPage[nd_i] * beta * invDen[topic];
+
+    boolean wasInDoc = ndPage[nd_i] != 0;
+    boolean wasInWord = nwPage[nwOff + topic] != 0;
+
+    ndPage[nd_i] += delta;
+    newModel.getNdsum()[m] += delta;
+    nwPage[nwOff + topic] += delta;
+
+    int nwsum_k;
+    if (separately) {
+      newModel.getNwsum_inf()[m][topic] += delta;
+      nwsum_k = newModel.getNwsum_inf()[m][topic];
+    } else {
+      newModel.getNwsum()[topic] += delta;
+      nwsum_k = newModel.getNwsum()[topic];
+    }
+
+    invDen[topic] = 1.0 / (trained.getNwsum()[topic] + nwsum_k + Vbeta);
+    if (!separately) {
+      labelKernel.setDenominator(topic, trained.getNwsum()[topic] + nwsum_k + Vbeta);
+    }
+    s += alpha * beta * invDen[topic];
+    r += ndPage[nd_i] * beta * invDen[topic];
+    coef[topic] = (ndPage[nd_i] + alpha) * invDen[topic];
+
+    if (wasInDoc && ndPage[nd_i] == 0) {
+      int pos = docTopicPos[topic];
+      int last = docTopics[--docTopicSize];
+      docTopics[pos] = last;
+      docTopicPos[last] = pos;
+      docTopicPos[topic] = -1;
+    } else if (!wasInDoc && ndPage[nd_i] != 0) {
+      docTopicPos[topic] = docTopicSize;
+      docTopics[docTopicSize++] = topic;
+    }
+
+    if (!separately) {
+      if (wasInWord && nwPage[nwOff + topic] == 0) {
+        wordTopics.remove(_w, topic);
+      } else if (!wasInWord && nwPage[nwOff + topic] != 0) {
+        wordTopics.add(_w, topic);
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Document-topic distributions for -sparsetheta, kept as the sum over the samples taken of
+ * every document's non-zero topic counts instead of an M x K matrix of means. A document only
+ * stores the topics it has ever been assigned, which for a labelled document are at most its
+ * labels. row() expands a document to theta when it is written:
+ * (mean count + alpha) / (ndsum + K * alpha). With a single sample this is exactly the dense
+ * theta; averaged over several samples it may differ from it in the last digits.
+ */
+public class SparseTheta {
+  private static final int[] NO_TOPICS = new int[0];
+  private static final long[] NO_SUMS = new long[0];
+
+  private int K;
+  private int[][] topics; // topics[m]: sorted topics that document m has had counts in
+  private long[][] sums;  // sums[m][i]: count of topics[m][i] summed over the samples
+  private int numSamples = 0;
+  private int[] scratch;  // non-zero topics of the row being added
+  private int[] scratchCounts; // and their counts
+
+  public SparseTheta(int M, int K) {
+    this.K = K;
+    topics = new int[M][];
+    sums = new long[M][];
+    for (int m = 0; m < M; m++) {
+      topics[m] = NO_TOPICS;
+      sums[m] = NO_SUMS;
+    }
+    scratch = new int[K];
+    scratchCounts = new int[K];
+  }
+
+  /**
+   * add the current document-topic counts nd as one sample
+   */
+  public void addSample(DocTopicCounts nd) {
+    for (int m = 0; m < topics.length; m++) {
+      add(m, nd.nonZero(m, scratch, scratchCounts));
+    }
+    numSamples++;
+  }
+
+  // add the n topics in scratch with counts scratchCounts to document m
+  private void add(int m, int n) {
+    int[] docTopics = topics[m];
+    long[] docSums = sums[m];
+
+    // count the topics that are new to the document
+    int added = 0;
+    for (int i = 0, j = 0; i < n; i++) {
+      while (j < docTopics.length && docTopics[j] < scratch[i])
+        j++;
+      if (j == docTopics.length || docTopics[j] != scratch[i])
+        added++;
+    }
+
+    if (added == 0) {
+      for (int i = 0, j = 0; i < n; i++) {
+        while (docTopics[j] < scratch[i])
+          j++;
+        docSums[j] += scratchCounts[i];
+      }
+      return;
+    }
+
+    // merge into larger arrays
+    int[] mergedTopics = new int[docTopics.length + added];
+    long[] mergedSums = new long[docTopics.length + added];
+    int i = 0, j = 0, t = 0;
+    while (i < n || j < docTopics.length) {
+      if (j == docTopics.length || (i < n && scratch[i] < docTopics[j])) {
+        mergedTopics[t] = scratch[i];
+        mergedSums[t++] = scratchCounts[i++];
+      } else if (i == n || docTopics[j] < scratch[i]) {
+        mergedTopics[t] = docTopics[j];
+        mergedSums[t++] = docSums[j++];
+      } else {
+        mergedTopics[t] = docTopics[j];
+        mergedSums[t++] = docSums[j++] + scratchCounts[i++];
+      }
+    }
+    topics[m] = mergedTopics;
+    sums[m] = mergedSums;
+  }
+
+  /**
+   * theta of document m into row
+   * @param ndsum number of words in document m
+   */
+  public void row(int m, int ndsum, double alpha, double[] row) {
+    double Kalpha = K * alpha;
+    int[] docTopics = topics[m];
+    long[] docSums = sums[m];
+    for (int k = 0, i = 0; k < K; k++) {
+      double count = 0;
+      if (i < docTopics.length && docTopics[i] == k) {
+        count = numSamples > 1 ? (double) docSums[i] / numSamples : docSums[i];
+        i++;
+      }
+      row[k] = (count + alpha) / (ndsum + Kalpha);
+    }
+  }
+
+  public int getNumSamples() {
+    return numSamples;
+  }
+}
@@ -0,0 +1,215 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Theta of the documents inferred with -infseparately (-thetacache), by content: many
+ * documents have the same bag of words and cfs, and many come again unchanged from one run to
+ * the next. As with -infseparately a document is sampled only against the trained counts and
+ * its own, a document whose content was sampled before takes the theta and topic assignments
+ * of that sample instead of being sampled again, like a document carried over by -incremental.
+ *
+ * An entry is keyed by the content fingerprint of InferenceState (the multiset of global word
+ * ids and cfs, and the labels, after the merge with the trained document of the same uid)
+ * combined with a fingerprint of the trained model, the hyperparameters and the sampling
+ * options, so the entries of a model that was replaced are no longer found and age out. The
+ * cache keeps the most recently used entries up to its capacity. It is persisted in
+ * -thetacachefile, eldest first.
+ *
+ * File layout (DataOutputStream): magic, version, K, number of entries (ints), then for every
+ * entry key (long), length n (int), theta (double[K]), topics (int[n]) in the order of the
+ * document's (global word id, cf) pairs sorted.
+ */
+public class ThetaCache {
+  public static final int MAGIC = 0x4354444c; // "LDTC"
+  public static final int VERSION = 1;
+
+  private int K;
+  private LinkedHashMap<Long, Sample> entries;
+  private int hits = 0;
+  private int misses = 0;
+
+  private static class Sample {
+    double[] theta;
+    int[] topics;
+
+    Sample(double[] theta, int[] topics) {
+      this.theta = theta;
+      this.topics = topics;
+    }
+  }
+
+  public ThetaCache(int K, final int capacity) {
+    this.K = K;
+    entries = new LinkedHashMap<Long, Sample>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long, Sample> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * the cache persisted in filename, empty if there is none or it cannot be read
+   */
+  public static ThetaCache load(String filename, int K, int capacity) {
+    ThetaCache cache = new ThetaCache(K, capacity);
+    File file = new File(filename);
+    if (!file.exists())
+      return cache;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != K) {
+          System.out.println("Ignoring theta cache " + filename + ": unknown format or number of topics");
+          return cache;
+        }
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+          long key = in.readLong();
+          double[] theta = new double[K];
+          int[] topics = new int[in.readInt()];
+          for (int k = 0; k < K; k++) {
+            theta[k] = in.readDouble();
+          }
+          for (int n = 0; n < topics.length; n++) {
+            topics[n] = in.readInt();
+            if (topics[n] < 0 || topics[n] >= K)
+              throw new IOException("Invalid topic in theta cache: " + topics[n]);
+          }
+          cache.entries.put(key, new Sample(theta, topics));
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      System.out.println("Ignoring theta cache " + filename + ": " + e.getMessage());
+      return new ThetaCache(K, capacity);
+    }
+    return cache;
+  }
+
+  /**
+   * write the cache to filename.tmp and rename it to filename
+   */
+  public synchronized void write(String filename) throws IOException {
+    File tmp = new File(filename + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(K);
+      out.writeInt(entries.size());
+      for (Map.Entry<Long, Sample> entry : entries.entrySet()) {
+        out.writeLong(entry.getKey());
+        out.writeInt(entry.getValue().topics.length);
+        for (double value : entry.getValue().theta) {
+          out.writeDouble(value);
+        }
+        for (int topic : entry.getValue().topics) {
+          out.writeInt(topic);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), new File(filename).toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Give the documents of newModel whose content is in the cache the cached topic
+   * assignments and theta, see Model.carryOver, and recount.
+   * @return number of documents found
+   */
+  public synchronized int carryOver(Model trnModel, Model newModel, LDACmdOption option) {
+    long modelKey = modelKey(trnModel, newModel, option);
+    LDADataset data = newModel.getData();
+    TopicAssignments z = newModel.getZ();
+    int found = 0;
+    for (int m = 0; m < newModel.getM(); m++) {
+      if (newModel.isCarried(m))
+        continue;
+      Sample sample = entries.get(key(modelKey, data, m));
+      if (sample == null || sample.topics.length != data.getDocs().get(m).getLength()) {
+        misses++;
+        continue;
+      }
+      Integer[] tokens = InferenceState.sortedTokens(data, m);
+      for (int i = 0; i < tokens.length; i++) {
+        z.set(m, tokens[i], sample.topics[i]);
+      }
+      newModel.carryOver(m, sample.theta);
+      found++;
+    }
+    hits += found;
+
+    if (found > 0)
+      newModel.recount();
+    return found;
+  }
+
+  /**
+   * add the documents of newModel, once sampled, that are not in the cache
+   */
+  public synchronized void addAll(Model trnModel, Model newModel, LDACmdOption option) {
+    long modelKey = modelKey(trnModel, newModel, option);
+    LDADataset data = newModel.getData();
+    TopicAssignments z = newModel.getZ();
+    for (int m = 0; m < newModel.getM(); m++) {
+      long key = key(modelKey, data, m);
+      if (entries.containsKey(key))
+        continue;
+      double[] theta = new double[K];
+      newModel.thetaRow(m, theta);
+      Integer[] tokens = InferenceState.sortedTokens(data, m);
+      int[] topics = new int[tokens.length];
+      for (int i = 0; i < tokens.length; i++) {
+        topics[i] = z.get(m, tokens[i]);
+      }
+      entries.put(key, new Sample(theta, topics));
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * number of documents found in the cache so far
+   */
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  /**
+   * number of documents not found in the cache so far
+   */
+  public synchronized int getMisses() {
+    return misses;
+  }
+
+  // the model and the options that theta of a content depends on
+  private static long modelKey(Model trnModel, Model newModel, LDACmdOption option) {
+    long h = InferenceState.modelFingerprint(trnModel, newModel);
+    h = InferenceState.mix(h ^ newModel.getNiters());
+    h = InferenceState.mix(h ^ newModel.getNburnin());
+    h = InferenceState.mix(h ^ newModel.getSamplingLag());
+    h = InferenceState.mix(h ^ Double.doubleToLongBits(option.convThreshold));
+    return InferenceState.mix(h ^ Double.doubleToLongBits(option.convChangeRate));
+  }
+
+  private static long key(long modelKey, LDADataset data, int m) {
+    return InferenceState.mix(modelKey ^ InferenceState.fingerprint(data, m));
+  }
+}
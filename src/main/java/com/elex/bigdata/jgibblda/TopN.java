@@ -0,0 +1,103 @@
+package com.elex.bigdata.jgibblda;
+
+/**
+ * Selects the n ids with the largest values from a stream of (id, value) pairs in O(log n)
+ * per pair, with a bounded min-heap over primitive arrays. Values compare as Double.compare
+ * does and equal values keep the id that was offered first, so the result is the head of a
+ * stable descending sort of all pairs. Not thread-safe, every thread uses its own instance.
+ */
+public class TopN {
+  private int[] ids;
+  private double[] values;
+  private int size = 0;
+  private long offered = 0; // pairs offered since clear()
+  private long[] order;     // order[i]: offer number of heap element i, breaks ties
+
+  public TopN(int n) {
+    ids = new int[n];
+    values = new double[n];
+    order = new long[n];
+  }
+
+  public void clear() {
+    size = 0;
+    offered = 0;
+  }
+
+  public void offer(int id, double value) {
+    long seq = offered++;
+    if (size < ids.length) {
+      int i = size++;
+      // sift up
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!worse(value, seq, values[parent], order[parent]))
+          break;
+        set(i, ids[parent], values[parent], order[parent]);
+        i = parent;
+      }
+      set(i, id, value, seq);
+    } else if (size > 0 && worse(values[0], order[0], value, seq)) {
+      siftDown(0, id, value, seq);
+    }
+  }
+
+  // whether (value1, seq1) ranks below (value2, seq2)
+  private static boolean worse(double value1, long seq1, double value2, long seq2) {
+    int c = Double.compare(value1, value2);
+    return c < 0 || (c == 0 && seq1 > seq2);
+  }
+
+  private void siftDown(int i, int id, double value, long seq) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && worse(values[child + 1], order[child + 1], values[child], order[child]))
+        child++;
+      if (!worse(values[child], order[child], value, seq))
+        break;
+      set(i, ids[child], values[child], order[child]);
+      i = child;
+    }
+    set(i, id, value, seq);
+  }
+
+  private void set(int i, int id, double value, long seq) {
+    ids[i] = id;
+    values[i] = value;
+    order[i] = seq;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sort the selected pairs from the largest value down and empty the selection.
+   * @return the number of pairs, they are getIds()[0..n-1] and getValues()[0..n-1]
+   */
+  public int sort() {
+    int n = size;
+    // heap sort: move the worst element to the end, the best ends up first
+    while (size > 1) {
+      int last = --size;
+      int id = ids[last];
+      double value = values[last];
+      long seq = order[last];
+      set(last, ids[0], values[0], order[0]);
+      siftDown(0, id, value, seq);
+    }
+    size = 0;
+    offered = 0;
+    return n;
+  }
+
+  public int[] getIds() {
+    return ids;
+  }
+
+  public double[] getValues() {
+    return values;
+  }
+}
@@ -0,0 +1,179 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.Arrays;
+
+/**
+ * Topic assignments z of a whole corpus packed into one array with per-document offsets,
+ * instead of one TIntArrayList per document. The element width is the smallest of
+ * 8, 16 or 32 bits that can hold topic K - 1, so labelled models with few topics take one
+ * byte per token. Documents are appended in order with addDocument() and add().
+ * Threads may set() the assignments of disjoint documents concurrently, Java arrays do not
+ * tear on byte or short writes.
+ */
+public class TopicAssignments {
+  private int width; // bytes per element: 1, 2 or 4
+  private byte[] bytes;
+  private short[] shorts;
+  private int[] ints;
+
+  private int[] starts; // starts[m]: position of z[m][0], starts[M]: number of tokens
+  private int M = 0;
+
+  private TopicAssignments() {
+  }
+
+  public TopicAssignments(int K) {
+    this(K, 10, 10);
+  }
+
+  /**
+   * @param numDocs expected number of documents
+   * @param numTokens expected number of tokens
+   */
+  public TopicAssignments(int K, int numDocs, long numTokens) {
+    width = K <= (1 << 8) ? 1 : K <= (1 << 16) ? 2 : 4;
+    int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(10, numTokens));
+    if (width == 1) {
+      bytes = new byte[capacity];
+    } else if (width == 2) {
+      shorts = new short[capacity];
+    } else {
+      ints = new int[capacity];
+    }
+    starts = new int[Math.max(10, numDocs + 1)];
+  }
+
+  /**
+   * start a new, empty document at the end
+   */
+  public void addDocument() {
+    if (M + 1 == starts.length) {
+      int[] grown = new int[starts.length * 2];
+      System.arraycopy(starts, 0, grown, 0, starts.length);
+      starts = grown;
+    }
+    starts[M + 1] = starts[M];
+    M++;
+  }
+
+  /**
+   * append topic to the last document
+   */
+  public void add(int topic) {
+    int pos = starts[M];
+    if (pos == capacity()) {
+      grow();
+    }
+    starts[M] = pos + 1;
+    set(pos, topic);
+  }
+
+  public int get(int m, int n) {
+    int pos = starts[m] + n;
+    if (width == 1) {
+      return bytes[pos] & 0xff;
+    } else if (width == 2) {
+      return shorts[pos] & 0xffff;
+    }
+    return ints[pos];
+  }
+
+  public void set(int m, int n, int topic) {
+    set(starts[m] + n, topic);
+  }
+
+  private void set(int pos, int topic) {
+    if (width == 1) {
+      bytes[pos] = (byte) topic;
+    } else if (width == 2) {
+      shorts[pos] = (short) topic;
+    } else {
+      ints[pos] = topic;
+    }
+  }
+
+  /**
+   * number of assignments of document m
+   */
+  public int size(int m) {
+    return starts[m + 1] - starts[m];
+  }
+
+  public int getM() {
+    return M;
+  }
+
+  /**
+   * total number of assignments
+   */
+  public int getNumTokens() {
+    return starts[M];
+  }
+
+  /**
+   * bytes per element: 1, 2 or 4
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * assignment at position pos of the whole corpus, 0 <= pos < getNumTokens()
+   */
+  public int getAt(int pos) {
+    if (width == 1) {
+      return bytes[pos] & 0xff;
+    } else if (width == 2) {
+      return shorts[pos] & 0xffff;
+    }
+    return ints[pos];
+  }
+
+  public void setAt(int pos, int topic) {
+    set(pos, topic);
+  }
+
+  /**
+   * a copy of the assignments of all documents
+   */
+  public TopicAssignments copy() {
+    TopicAssignments copy = new TopicAssignments();
+    int size = Math.max(getNumTokens(), 1);
+    copy.width = width;
+    if (width == 1) {
+      copy.bytes = Arrays.copyOf(bytes, size);
+    } else if (width == 2) {
+      copy.shorts = Arrays.copyOf(shorts, size);
+    } else {
+      copy.ints = Arrays.copyOf(ints, size);
+    }
+    copy.starts = Arrays.copyOf(starts, M + 1);
+    copy.M = M;
+    return copy;
+  }
+
+  private int capacity() {
+    return width == 1 ? bytes.length : width == 2 ? shorts.length : ints.length;
+  }
+
+  private void grow() {
+    int capacity = capacity();
+    if (capacity >= Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Too many topic assignments: " + capacity);
+    }
+    int grown = (int) Math.min(Integer.MAX_VALUE - 8, capacity * 2L);
+    if (width == 1) {
+      byte[] a = new byte[grown];
+      System.arraycopy(bytes, 0, a, 0, capacity);
+      bytes = a;
+    } else if (width == 2) {
+      short[] a = new short[grown];
+      System.arraycopy(shorts, 0, a, 0, capacity);
+      shorts = a;
+    } else {
+      int[] a = new int[grown];
+      System.arraycopy(ints, 0, a, 0, capacity);
+      ints = a;
+    }
+  }
+}
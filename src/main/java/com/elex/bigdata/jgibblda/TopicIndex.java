@@ -0,0 +1,99 @@
+package com.elex.bigdata.jgibblda;
+
+import java.util.Arrays;
+
+/**
+ * Per-row lists of the topics with a non-zero count in a count matrix such as nw, so that the
+ * sparse samplers only have to visit those topics. The lists are unordered; callers keep them
+ * in sync by calling add() when a count becomes non-zero and remove() when it drops to zero, and
+ * rebuild() a row whose counts were changed behind their back.
+ */
+public class TopicIndex {
+  private static final int[] EMPTY = new int[0];
+
+  private int[][] topics; // topics[r][0..sizes[r]-1]: topics with a non-zero count in row r
+  private int[] sizes;
+
+  public TopicIndex(int rows) {
+    topics = new int[rows][];
+    sizes = new int[rows];
+    Arrays.fill(topics, EMPTY);
+  }
+
+  /**
+   * rebuild all lists from the given counts
+   */
+  public void build(CountMatrix counts, int K) {
+    int[] buf = new int[K];
+    for (int r = 0; r < topics.length; r++) {
+      int size = 0;
+      if (r < counts.getRows()) {
+        int[] row = counts.page(r);
+        int off = counts.offset(r);
+        for (int k = 0; k < K; k++) {
+          if (row[off + k] != 0)
+            buf[size++] = k;
+        }
+      }
+      int[] list = size == 0 ? EMPTY : new int[size];
+      System.arraycopy(buf, 0, list, 0, size);
+      topics[r] = list;
+      sizes[r] = size;
+    }
+  }
+
+  /**
+   * rebuild the list of row from the given counts
+   */
+  public void rebuild(int row, CountMatrix counts, int K) {
+    int[] page = counts.page(row);
+    int off = counts.offset(row);
+    int size = 0;
+    for (int k = 0; k < K; k++) {
+      if (page[off + k] != 0)
+        size++;
+    }
+    int[] list = topics[row];
+    if (list.length < size || list.length > 2 * size + 4) {
+      list = topics[row] = size == 0 ? EMPTY : new int[size];
+    }
+    size = 0;
+    for (int k = 0; k < K; k++) {
+      if (page[off + k] != 0)
+        list[size++] = k;
+    }
+    sizes[row] = size;
+  }
+
+  public int size(int row) {
+    return sizes[row];
+  }
+
+  public int[] topics(int row) {
+    return topics[row];
+  }
+
+  public void add(int row, int k) {
+    int[] list = topics[row];
+    int size = sizes[row];
+    if (size == list.length) {
+      int[] grown = new int[Math.max(4, size * 2)];
+      System.arraycopy(list, 0, grown, 0, size);
+      topics[row] = list = grown;
+    }
+    list[size] = k;
+    sizes[row] = size + 1;
+  }
+
+  public void remove(int row, int k) {
+    int[] list = topics[row];
+    int last = sizes[row] - 1;
+    for (int i = 0; i <= last; i++) {
+      if (list[i] == k) {
+        list[i] = list[last];
+        sizes[row] = last;
+        return;
+      }
+    }
+  }
+}
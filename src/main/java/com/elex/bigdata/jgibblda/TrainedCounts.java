@@ -0,0 +1,52 @@
+package com.elex.bigdata.jgibblda;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * The trained word-topic counts needed to infer a new dataset, copied once from the trained
+ * model into rows indexed by the new data's local word ids. The trained model does not change
+ * during inference, so the samplers read a token's trained counts directly with the local
+ * word id instead of resolving the global id through lid2gid for every token. The non-zero
+ * topics of every row are indexed once as well.
+ */
+public class TrainedCounts {
+  private CountMatrix nw;    // nw(_w, k): trained count of local word _w in topic k, size V x K
+  private int[] nwsum;       // nwsum[k]: trained number of words assigned to topic k
+  private double Vbeta;      // beta times the trained vocabulary size
+  private TopicIndex topics; // non-zero topics of every row of nw
+
+  public TrainedCounts(Model trnModel, Model newModel) {
+    int V = newModel.getV();
+    int K = trnModel.getK();
+    TIntIntHashMap lid2gid = newModel.getData().getLid2gid();
+    CountMatrix trnNw = trnModel.getNw();
+
+    nw = new CountMatrix(V, K);
+    for (int _w = 0; _w < V; _w++) {
+      int w = lid2gid.get(_w);
+      System.arraycopy(trnNw.page(w), trnNw.offset(w), nw.page(_w), nw.offset(_w), K);
+    }
+
+    nwsum = trnModel.getNwsum().clone();
+    Vbeta = trnModel.getV() * newModel.getBeta();
+
+    topics = new TopicIndex(V);
+    topics.build(nw, K);
+  }
+
+  public CountMatrix getNw() {
+    return nw;
+  }
+
+  public int[] getNwsum() {
+    return nwsum;
+  }
+
+  public double getVbeta() {
+    return Vbeta;
+  }
+
+  public TopicIndex getTopics() {
+    return topics;
+  }
+}
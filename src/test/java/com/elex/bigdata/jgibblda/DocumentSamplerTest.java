@@ -0,0 +1,139 @@
+package com.elex.bigdata.jgibblda;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+import org.kohsuke.args4j.CmdLineParser;
+
+/**
+ * In-process inference must sample the same document as inference of a data file, which
+ * drops the eliminated urls even when the trained dictionary has them, as it does for a model
+ * trained before a url was eliminated.
+ */
+public class DocumentSamplerTest {
+  private static final String ELIMINATED = "www.google.com.br";
+  private static final String UID = "new";
+  private static final String[] URLS = {"site1.com", ELIMINATED, "site2.com", "site3.com"};
+  private static final int[] COUNTS = {2, 4, 3, 1};
+
+  @Test
+  public void inferSkipsEliminatedUrlsAsDataFileInference() throws Exception {
+    assertTrue(new LDADataset().getEliminatedUrls().contains(ELIMINATED));
+    File dir = trainModel();
+
+    Inferencer inferencer = new Inferencer(option(dir, "-inf", "-dfile", "new.gz", "-infseparately"));
+    Model newModel = inferencer.inference();
+    Model trnModel = inferencer.getTrainedModel();
+    assertTrue(trnModel.getData().getLocalDict().getID(ELIMINATED) >= 0);
+
+    DocumentSampler sampler = new DocumentSampler(trnModel, option(dir, "-inf"), 7);
+    sampler.infer(UID, URLS, COUNTS, null, new double[trnModel.getK()]);
+    assertArrayEquals(tokens(newModel.getData(), 0), tokens(sampler));
+
+    // the eliminated url changes neither the tokens nor the stream of the document
+    double[] theta = inferencer.infer(UID, URLS, COUNTS, null);
+    double[] without = inferencer.infer(UID, new String[] {"site1.com", "site2.com", "site3.com"},
+      new int[] {2, 3, 1}, null);
+    assertArrayEquals(without, theta, 0);
+  }
+
+  // (global id, cf) of every token, sorted
+  private static long[] tokens(LDADataset data, int m) {
+    Document doc = data.getDocs().get(m);
+    TIntIntHashMap lid2gid = data.getLid2gid();
+    long[] tokens = new long[doc.getLength()];
+    for (int n = 0; n < tokens.length; n++) {
+      tokens[n] = ((long) lid2gid.get(doc.getWords()[n]) << 32) | doc.getCfs()[n];
+    }
+    Arrays.sort(tokens);
+    return tokens;
+  }
+
+  private static long[] tokens(DocumentSampler sampler) {
+    long[] tokens = new long[sampler.getLength()];
+    for (int n = 0; n < tokens.length; n++) {
+      tokens[n] = ((long) sampler.getWords()[n] << 32) | sampler.getCfs()[n];
+    }
+    Arrays.sort(tokens);
+    return tokens;
+  }
+
+  // a model whose dictionary has ELIMINATED, trained as old.example.com and renamed
+  private static File trainModel() throws Exception {
+    File dir = Files.createTempDirectory("documentsampler").toFile();
+    Random random = new Random(1);
+    Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(new File(dir, "docs.gz"))), "UTF-8");
+    try {
+      for (int m = 0; m < 200; m++) {
+        out.write("u" + m + "\told.example.com," + (1 + random.nextInt(5)));
+        int length = 1 + random.nextInt(6);
+        for (int n = 0; n < length; n++) {
+          out.write(" site" + random.nextInt(20) + ".com," + (1 + random.nextInt(5)));
+        }
+        out.write("\n");
+      }
+    } finally {
+      out.close();
+    }
+    new Estimator(option(dir, "-est", "-dfile", "docs.gz")).estimate();
+
+    File wordMap = new File(dir, "m" + Model.getWordMapSuffix());
+    List<String> words = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(wordMap)), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        words.add(line.equals("old.example.com") ? ELIMINATED : line);
+      }
+    } finally {
+      in.close();
+    }
+    out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(wordMap)), "UTF-8");
+    try {
+      for (String word : words) {
+        out.write(word + "\n");
+      }
+    } finally {
+      out.close();
+    }
+
+    out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(new File(dir, "new.gz"))), "UTF-8");
+    try {
+      out.write(UID + "\t");
+      for (int i = 0; i < URLS.length; i++) {
+        out.write((i > 0 ? " " : "") + URLS[i] + "," + COUNTS[i]);
+      }
+      out.write("\n");
+    } finally {
+      out.close();
+    }
+    return dir;
+  }
+
+  private static LDACmdOption option(File dir, String... args) throws Exception {
+    LDACmdOption option = new LDACmdOption();
+    List<String> all = new ArrayList<String>(Arrays.asList(args));
+    all.addAll(Arrays.asList("-dir", dir.getPath(), "-model", "m", "-ntopics", "5", "-niters", "20",
+      "-nburnin", "10", "-seed", "7", "-unlabeled"));
+    new CmdLineParser(option).parseArgument(all.toArray(new String[all.size()]));
+    return option;
+  }
+}
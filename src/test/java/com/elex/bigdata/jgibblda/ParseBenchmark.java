@@ -0,0 +1,124 @@
+package com.elex.bigdata.jgibblda;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Compares the allocation rate and speed of the String based line parsing that
+ * LDADataset.addDoc used before LineScanner with the current LDADataset.parseDoc.
+ * The data file is decoded into memory first, so only parsing is measured; the
+ * String based parser is charged for the line Strings BufferedReader.readLine creates.
+ *
+ * Kept with the test sources so that it is not packaged; run it with the test classpath,
+ * e.g. mvn test-compile, then java -cp target/classes:target/test-classes:trove4j.jar.
+ *
+ * usage: ParseBenchmark datafile [rounds]
+ */
+public class ParseBenchmark {
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.out.println("ParseBenchmark datafile [rounds]");
+      return;
+    }
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    // decode the whole file and find the lines
+    InputStream in = new FileInputStream(args[0]);
+    if (args[0].endsWith(".gz"))
+      in = new GZIPInputStream(in, 1 << 16);
+    LineReader reader = new LineReader(new InputStreamReader(in, "UTF-8"));
+    StringBuilder text = new StringBuilder();
+    TIntArrayList lineEnds = new TIntArrayList();
+    while (reader.next()) {
+      text.append(reader.getBuffer(), reader.getStart(), reader.getEnd() - reader.getStart());
+      lineEnds.add(text.length());
+    }
+    reader.close();
+    char[] chars = new char[text.length()];
+    text.getChars(0, text.length(), chars, 0);
+    text = null;
+
+    LDADataset data = new LDADataset();
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    for (int round = 0; round < rounds; round++) {
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      long tokens = 0;
+      for (int i = 0, from = 0; i < lineEnds.size(); from = lineEnds.get(i++)) {
+        tokens += parseWithStrings(new String(chars, from, lineEnds.get(i) - from), data.getEliminatedUrls());
+      }
+      report("strings", tokens, threads.getThreadAllocatedBytes(thread) - bytes, System.nanoTime() - start);
+
+      LineScanner scanner = new LineScanner();
+      bytes = threads.getThreadAllocatedBytes(thread);
+      start = System.nanoTime();
+      tokens = 0;
+      for (int i = 0, from = 0; i < lineEnds.size(); from = lineEnds.get(i++)) {
+        LDADataset.ParsedDoc doc = data.parseDoc(scanner, chars, from, lineEnds.get(i), false);
+        if (doc != null)
+          tokens += doc.length;
+      }
+      report("scanner", tokens, threads.getThreadAllocatedBytes(thread) - bytes, System.nanoTime() - start);
+    }
+  }
+
+  private static void report(String parser, long tokens, long bytes, long nanos) {
+    System.out.format("%-8s %10d tokens %8.1f MB allocated %8.1f bytes/token %8.1f ms%n",
+      parser, tokens, bytes / 1e6, (double) bytes / Math.max(1, tokens), nanos / 1e6);
+  }
+
+  // the parsing done by LDADataset.addDoc before LineScanner, without the dictionary lookups
+  private static int parseWithStrings(String str, Set<String> eliminatedUrls) {
+    if (!str.contains("\t"))
+      return 0;
+    String uid = str.substring(0, str.indexOf('\t'));
+    str = str.substring(str.indexOf('\t') + 1).trim();
+
+    TIntArrayList labels = null;
+    if (str.startsWith("[")) {
+      String[] labelsBoundary = str.substring(1).split("]", 2);
+      String[] labelStrs = labelsBoundary[0].trim().split(",");
+      str = labelsBoundary[1].trim();
+      TIntHashSet label_set = new TIntHashSet();
+      for (String labelStr : labelStrs) {
+        try {
+          label_set.add(Integer.parseInt(labelStr));
+        } catch (NumberFormatException nfe) {
+        }
+      }
+      labels = new TIntArrayList(label_set);
+      labels.sort();
+    }
+
+    String[] items = str.split(" ");
+    TIntArrayList cfs = new TIntArrayList();
+    for (String item : items) {
+      if (item.trim().equals("")) {
+        continue;
+      }
+      String[] wordCf = item.split(",");
+      if (wordCf.length != 2) {
+        continue;
+      }
+      try {
+        String word = wordCf[0];
+        if (eliminatedUrls.contains(word))
+          continue;
+        cfs.add(Integer.parseInt(wordCf[1]));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+    }
+    return cfs.size();
+  }
+}
@@ -0,0 +1,98 @@
+package com.elex.bigdata.jgibblda;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.kohsuke.args4j.CmdLineParser;
+
+/**
+ * The word topic index of the SparseLDA sampler is built once and then only maintained
+ * incrementally; after a few sweeps it must list the same topics as an index built afresh
+ * from the counts.
+ */
+public class TopicIndexTest {
+  @Test
+  public void serialIndexMatchesFreshBuild() throws Exception {
+    Estimator estimator = new Estimator(option(1));
+    Model model = estimator.getModel();
+    SparseGibbsSampler sampler = new SparseGibbsSampler(model, model.getNw(), model.getNwsum(), model.newRandom(1));
+    for (int sweep = 0; sweep < 5; sweep++) {
+      sampler.prepare();
+      for (int m = 0; m < model.getM(); m++) {
+        for (int n = 0; n < model.getData().getDocs().get(m).getLength(); n++) {
+          model.getZ().set(m, n, sampler.sample(m, n));
+        }
+      }
+      sampler.finish();
+    }
+    assertSameTopics(model, sampler.getWordTopics());
+  }
+
+  @Test
+  public void parallelIndexMatchesFreshBuildAfterMerge() throws Exception {
+    Estimator estimator = new Estimator(option(3));
+    Model model = estimator.getModel();
+    ParallelSampler parallel = new ParallelSampler(estimator, model, 3);
+    try {
+      for (int sweep = 0; sweep < 5; sweep++) {
+        parallel.sweep();
+      }
+      for (int i = 0; i < parallel.getNumWorkers(); i++) {
+        assertSameTopics(model, ((SparseGibbsSampler) parallel.getSampler(i)).getWordTopics());
+      }
+    } finally {
+      parallel.shutdown();
+    }
+  }
+
+  private static void assertSameTopics(Model model, TopicIndex index) {
+    TopicIndex fresh = new TopicIndex(model.getV());
+    fresh.build(model.getNw(), model.getK());
+    for (int w = 0; w < model.getV(); w++) {
+      assertArrayEquals("topics of word " + w, sorted(fresh, w), sorted(index, w));
+    }
+  }
+
+  private static int[] sorted(TopicIndex index, int row) {
+    int[] topics = Arrays.copyOf(index.topics(row), index.size(row));
+    Arrays.sort(topics);
+    return topics;
+  }
+
+  private static LDACmdOption option(int nthreads) throws Exception {
+    File dir = Files.createTempDirectory("topicindex").toFile();
+    writeDocs(new File(dir, "docs.gz"));
+    LDACmdOption option = new LDACmdOption();
+    new CmdLineParser(option).parseArgument("-est", "-dir", dir.getPath(), "-dfile", "docs.gz",
+      "-model", "m", "-ntopics", "10", "-seed", "7", "-sampler", "sparse", "-unlabeled",
+      "-nthreads", String.valueOf(nthreads));
+    return option;
+  }
+
+  private static void writeDocs(File file) throws IOException {
+    Random random = new Random(1);
+    Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8");
+    try {
+      for (int m = 0; m < 300; m++) {
+        out.write("u" + m + "\t");
+        int length = 1 + random.nextInt(8);
+        for (int n = 0; n < length; n++) {
+          out.write((n > 0 ? " " : "") + "site" + random.nextInt(80) + ".com," + (1 + random.nextInt(5)));
+        }
+        out.write("\n");
+      }
+    } finally {
+      out.close();
+    }
+  }
+}